@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// Where the Resolver found a variable: a global looked up by name, a slot of
+// the running frame, a slot of the running frame holding the Cell of a local
+// captured by a closure, or one of the upvalues of the running closure.
+enum Access
+{
+    GLOBAL,
+    LOCAL,
+    CELL,
+    UPVALUE
+}
@@ -0,0 +1,236 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.Interpreter.*;
+
+/*
+ * Self-specializing implementation of an Expr.Binary site. Every site starts
+ * out UNINITIALIZED and rewrites itself on first execution to the operation
+ * matching the operand types it saw (two numbers, two strings), which only
+ * checks a single type guard. When the guard fails the site falls back to
+ * GENERIC for good. Number sites evaluate their operands through
+ * Interpreter.evaluateDouble, so nested arithmetic stays unboxed.
+ */
+abstract class BinaryOperation
+{
+    abstract Object execute(Expr.Binary site, Object left, Object right);
+
+    Object execute(Interpreter interpreter, Expr.Binary site)
+    {
+        Object left = interpreter.evaluate(site.left);
+        Object right = interpreter.evaluate(site.right);
+        return execute(site, left, right);
+    }
+
+    double executeDouble(Interpreter interpreter, Expr.Binary site) throws UnexpectedResultException
+    {
+        return expectDouble(execute(interpreter, site));
+    }
+
+    static double expectDouble(Object value) throws UnexpectedResultException
+    {
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResultException(value);
+    }
+
+    static final BinaryOperation UNINITIALIZED = new BinaryOperation() {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right)
+        {
+            site.operation = specialize(site.operator.type, left, right);
+            return site.operation.execute(site, left, right);
+        }
+    };
+
+    static final BinaryOperation GENERIC = new BinaryOperation() {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right)
+        {
+            Token operator = site.operator;
+
+            switch (operator.type)
+            {
+                case MINUS:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left - (double)right;
+                case PLUS:
+                    if (left instanceof Double && right instanceof Double)
+                    {
+                        return (double)left + (double)right;
+                    }
+                    if (left instanceof String && right instanceof String)
+                    {
+                        return (String)left + (String)right;
+                    }
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+
+                case STAR:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left * (double)right;
+                case SLASH:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left / (double)right;
+                case GREATER:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left > (double)right;
+                case GREATER_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left >= (double)right;
+                case LESS:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left < (double)right;
+                case LESS_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left <= (double)right;
+                case BANG_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return !isEqual(left, right);
+                case EQUAL_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return isEqual(left, right);
+            }
+
+            return null;
+        }
+    };
+
+    private static BinaryOperation specialize(TokenType operator, Object left, Object right)
+    {
+        if (left instanceof Double && right instanceof Double)
+        {
+            switch (operator)
+            {
+                case MINUS:         return new NumberSubtract();
+                case PLUS:          return new NumberAdd();
+                case STAR:          return new NumberMultiply();
+                case SLASH:         return new NumberDivide();
+                case GREATER:       return new NumberGreater();
+                case GREATER_EQUAL: return new NumberGreaterEqual();
+                case LESS:          return new NumberLess();
+                case LESS_EQUAL:    return new NumberLessEqual();
+                case BANG_EQUAL:    return new NumberNotEqual();
+                case EQUAL_EQUAL:   return new NumberEqual();
+            }
+        }
+
+        if (left instanceof String && right instanceof String && operator == TokenType.PLUS)
+        {
+            return new StringConcat();
+        }
+
+        return GENERIC;
+    }
+
+    Object deoptimize(Expr.Binary site, Object left, Object right)
+    {
+        site.operation = GENERIC;
+        return GENERIC.execute(site, left, right);
+    }
+
+    // Number sites that produce a number. Boxing only happens where a
+    // caller needs an Object; subclasses only give the operator.
+    private abstract static class NumberArithmetic extends BinaryOperation
+    {
+        abstract double apply(double left, double right);
+
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right)
+        {
+            if (left instanceof Double && right instanceof Double) return apply((double)left, (double)right);
+            return deoptimize(site, left, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary site)
+        {
+            try
+            {
+                return executeDouble(interpreter, site);
+            }
+            catch (UnexpectedResultException unexpected)
+            {
+                return unexpected.result;
+            }
+        }
+
+        @Override
+        double executeDouble(Interpreter interpreter, Expr.Binary site) throws UnexpectedResultException
+        {
+            double left;
+            try
+            {
+                left = interpreter.evaluateDouble(site.left);
+            }
+            catch (UnexpectedResultException unexpected)
+            {
+                return expectDouble(deoptimize(site, unexpected.result, interpreter.evaluate(site.right)));
+            }
+
+            try
+            {
+                return apply(left, interpreter.evaluateDouble(site.right));
+            }
+            catch (UnexpectedResultException unexpected)
+            {
+                return expectDouble(deoptimize(site, left, unexpected.result));
+            }
+        }
+    }
+
+    // Number sites that produce a Boolean, from unboxed operands.
+    private abstract static class NumberComparison extends BinaryOperation
+    {
+        abstract boolean test(double left, double right);
+
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right)
+        {
+            if (left instanceof Double && right instanceof Double) return test((double)left, (double)right);
+            return deoptimize(site, left, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary site)
+        {
+            double left;
+            try
+            {
+                left = interpreter.evaluateDouble(site.left);
+            }
+            catch (UnexpectedResultException unexpected)
+            {
+                return deoptimize(site, unexpected.result, interpreter.evaluate(site.right));
+            }
+
+            try
+            {
+                return test(left, interpreter.evaluateDouble(site.right));
+            }
+            catch (UnexpectedResultException unexpected)
+            {
+                return deoptimize(site, left, unexpected.result);
+            }
+        }
+    }
+
+    private static final class NumberSubtract extends NumberArithmetic { double apply(double a, double b) { return a - b; } }
+    private static final class NumberAdd extends NumberArithmetic { double apply(double a, double b) { return a + b; } }
+    private static final class NumberMultiply extends NumberArithmetic { double apply(double a, double b) { return a * b; } }
+    private static final class NumberDivide extends NumberArithmetic { double apply(double a, double b) { return a / b; } }
+    private static final class NumberGreater extends NumberComparison { boolean test(double a, double b) { return a > b; } }
+    private static final class NumberGreaterEqual extends NumberComparison { boolean test(double a, double b) { return a >= b; } }
+    private static final class NumberLess extends NumberComparison { boolean test(double a, double b) { return a < b; } }
+    private static final class NumberLessEqual extends NumberComparison { boolean test(double a, double b) { return a <= b; } }
+    // Like Double.equals, under which NaN equals itself.
+    private static final class NumberEqual extends NumberComparison { boolean test(double a, double b) { return Double.compare(a, b) == 0; } }
+    private static final class NumberNotEqual extends NumberComparison { boolean test(double a, double b) { return Double.compare(a, b) != 0; } }
+
+    private static final class StringConcat extends BinaryOperation
+    {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right)
+        {
+            if (left instanceof String && right instanceof String) return (String)left + (String)right;
+            return deoptimize(site, left, right);
+        }
+    }
+}
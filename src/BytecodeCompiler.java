@@ -0,0 +1,728 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Compiles the resolved AST into chunks for the VM. Locals are kept on the
+ * VM stack and found by walking the compiler's own scope list, and
+ * variables captured from enclosing functions become upvalues, so the
+ * generated code never needs an Environment.
+ */
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void>
+{
+    // Thrown for a program past the limits of the instruction set, which
+    // the tree-walking engines run instead.
+    static final class TooLarge extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int line;
+
+        TooLarge(int line, String message)
+        {
+            super(message, null, false, false);
+            this.line = line;
+        }
+    }
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local
+    {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth)
+        {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue
+    {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal)
+        {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class FunctionState
+    {
+        final FunctionState enclosing;
+        final VM.ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, VM.ObjFunction function, FunctionType type)
+        {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the receiver in methods and the callee otherwise.
+            boolean hasReceiver = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(hasReceiver ? "this" : "", 0));
+        }
+    }
+
+    private FunctionState current = null;
+    private int line = 1;
+
+    VM.ObjFunction compile(List<Stmt> statements)
+    {
+        current = new FunctionState(null, new VM.ObjFunction("script"), FunctionType.SCRIPT);
+
+        for (Stmt statement : statements)
+        {
+            if (statement == null) break;
+            compile(statement);
+        }
+
+        emitReturn();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt)
+    {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr)
+    {
+        expr.accept(this);
+    }
+
+    private void compileAll(List<Stmt> statements)
+    {
+        for (Stmt statement : statements)
+        {
+            compile(statement);
+        }
+    }
+
+    private Chunk chunk()
+    {
+        return current.function.chunk;
+    }
+
+    private void emit(int value)
+    {
+        chunk().write(value, line);
+    }
+
+    private void emitShort(int value)
+    {
+        emit((value >> 8) & 0xff);
+        emit(value & 0xff);
+    }
+
+    // Property, method and class member names, which the ScriptCache
+    // keeps apart from string literals.
+    private int nameConstant(String name)
+    {
+        int index = makeConstant(name);
+        chunk().names.set(index);
+        return index;
+    }
+
+    private void emitConstant(Object value)
+    {
+        emit(OpCode.CONSTANT);
+        emitShort(makeConstant(value));
+    }
+
+    private int makeConstant(Object value)
+    {
+        int index = chunk().addConstant(value);
+        if (index > 0xffff) throw new TooLarge(line, "Too many constants in one function.");
+        return index;
+    }
+
+    private void emitInt(int value)
+    {
+        emitShort(value >>> 16);
+        emitShort(value & 0xffff);
+    }
+
+    private int emitJump(int instruction)
+    {
+        emit(instruction);
+        emitInt(0);
+        return chunk().count - 4;
+    }
+
+    private void patchJump(int offset)
+    {
+        int jump = chunk().count - offset - 4;
+
+        byte[] code = chunk().code;
+        code[offset] = (byte)(jump >>> 24);
+        code[offset + 1] = (byte)(jump >>> 16);
+        code[offset + 2] = (byte)(jump >>> 8);
+        code[offset + 3] = (byte)jump;
+    }
+
+    private void emitLoop(int loopStart)
+    {
+        emit(OpCode.LOOP);
+        emitInt(chunk().count - loopStart + 4);
+    }
+
+    private void emitReturn()
+    {
+        if (current.type == FunctionType.INITIALIZER)
+        {
+            emit(OpCode.GET_LOCAL);
+            emitShort(0);
+        }
+        else
+        {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private void beginScope()
+    {
+        ++current.scopeDepth;
+    }
+
+    private void endScope()
+    {
+        --current.scopeDepth;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth)
+        {
+            emit(locals.get(locals.size() - 1).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // Adds a local for the value sitting on top of the stack.
+    private int addLocal(String name)
+    {
+        if (current.locals.size() == 0x10000) throw new TooLarge(line, "Too many local variables in function.");
+
+        current.locals.add(new Local(name, current.scopeDepth));
+        return current.locals.size() - 1;
+    }
+
+    private static int resolveLocal(FunctionState state, String name)
+    {
+        for (int i = state.locals.size() - 1; i >= 0; --i)
+        {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name)
+    {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1)
+        {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1)
+        {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal)
+    {
+        for (int i = 0; i < state.upvalues.size(); ++i)
+        {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        if (state.upvalues.size() == 0x10000) throw new TooLarge(line, "Too many closure variables in function.");
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        state.function.upvalueCount = state.upvalues.size();
+        return state.upvalues.size() - 1;
+    }
+
+    private void getVariable(Token name)
+    {
+        line = name.line;
+
+        int slot = resolveLocal(current, name.lexeme);
+        if (slot != -1)
+        {
+            emit(OpCode.GET_LOCAL);
+            emitShort(slot);
+            return;
+        }
+
+        int upvalue = resolveUpvalue(current, name.lexeme);
+        if (upvalue != -1)
+        {
+            emit(OpCode.GET_UPVALUE);
+            emitShort(upvalue);
+            return;
+        }
+
+        emit(OpCode.GET_GLOBAL);
+        emitShort(makeConstant(name));
+    }
+
+    private void setVariable(Token name)
+    {
+        line = name.line;
+
+        int slot = resolveLocal(current, name.lexeme);
+        if (slot != -1)
+        {
+            emit(OpCode.SET_LOCAL);
+            emitShort(slot);
+            return;
+        }
+
+        int upvalue = resolveUpvalue(current, name.lexeme);
+        if (upvalue != -1)
+        {
+            emit(OpCode.SET_UPVALUE);
+            emitShort(upvalue);
+            return;
+        }
+
+        emit(OpCode.SET_GLOBAL);
+        emitShort(makeConstant(name));
+    }
+
+    // Defines the variable from the value on top of the stack.
+    private void defineVariable(Token name)
+    {
+        if (current.scopeDepth > 0)
+        {
+            addLocal(name.lexeme);
+            return;
+        }
+
+        emit(OpCode.DEFINE_GLOBAL);
+        emitShort(makeConstant(name));
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type)
+    {
+        VM.ObjFunction function = new VM.ObjFunction(stmt.name.lexeme);
+        function.arity = stmt.parameters.size();
+        function.isInitializer = type == FunctionType.INITIALIZER;
+
+        current = new FunctionState(current, function, type);
+        beginScope();
+
+        for (Token parameter : stmt.parameters)
+        {
+            addLocal(parameter.lexeme);
+        }
+
+        compileAll(stmt.body);
+        emitReturn();
+
+        FunctionState state = current;
+        current = current.enclosing;
+
+        line = stmt.name.line;
+        emit(OpCode.CLOSURE);
+        emitShort(makeConstant(function));
+        for (Upvalue upvalue : state.upvalues)
+        {
+            emit(upvalue.isLocal ? 1 : 0);
+            emitShort(upvalue.index);
+        }
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt)
+    {
+        line = stmt.name.line;
+
+        // The name is bound to nil while the class body is evaluated, like
+        // the Interpreter does.
+        emit(OpCode.NIL);
+        defineVariable(stmt.name);
+
+        beginScope();
+
+        emit(OpCode.CLASS);
+        emitShort(makeConstant(stmt.name));
+        int classSlot = addLocal("");
+
+        if (stmt.superclass != null)
+        {
+            getVariable(stmt.superclass.name);
+            emit(OpCode.INHERIT);
+            addLocal("super");
+        }
+
+        emit(OpCode.GET_LOCAL);
+        emitShort(classSlot);
+        for (Stmt.Function method : stmt.methods)
+        {
+            FunctionType type = method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emit(OpCode.METHOD);
+            emitShort(nameConstant(method.name.lexeme));
+        }
+
+        for (Stmt field : stmt.fields)
+        {
+            Token name;
+            if (field instanceof Stmt.Function)
+            {
+                name = ((Stmt.Function)field).name;
+                function((Stmt.Function)field, FunctionType.FUNCTION);
+            }
+            else
+            {
+                Stmt.Var var = (Stmt.Var)field;
+                name = var.token;
+                if (var.initializer != null) compile(var.initializer);
+                else emit(OpCode.NIL);
+            }
+            line = name.line;
+            emit(OpCode.STATIC_FIELD);
+            emitShort(nameConstant(name.lexeme));
+        }
+        emit(OpCode.POP);
+
+        line = stmt.name.line;
+        emit(OpCode.GET_LOCAL);
+        emitShort(classSlot);
+        if (current.scopeDepth > 1)
+        {
+            emit(OpCode.SET_LOCAL);
+            emitShort(resolveLocal(current, stmt.name.lexeme));
+            emit(OpCode.POP);
+        }
+        else
+        {
+            emit(OpCode.DEFINE_GLOBAL);
+            emitShort(makeConstant(stmt.name));
+        }
+
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt)
+    {
+        line = stmt.keyword.line;
+
+        if (stmt.value == null)
+        {
+            emitReturn();
+            return null;
+        }
+
+        // A tail call that doesn't replace the frame, of a native or a
+        // class, still leaves its result for the RETURN.
+        if (stmt.tailCall) call((Expr.Call)stmt.value, true);
+        else compile(stmt.value);
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt)
+    {
+        // Declared before the body is compiled so local functions can recurse.
+        if (current.scopeDepth > 0)
+        {
+            emit(OpCode.NIL);
+            int slot = addLocal(stmt.name.lexeme);
+            function(stmt, FunctionType.FUNCTION);
+            emit(OpCode.SET_LOCAL);
+            emitShort(slot);
+            emit(OpCode.POP);
+            return null;
+        }
+
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt)
+    {
+        beginScope();
+        compileAll(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt)
+    {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt)
+    {
+        int loopStart = chunk().count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt)
+    {
+        if (stmt.initializer != null) compile(stmt.initializer);
+        else emit(OpCode.NIL);
+
+        line = stmt.token.line;
+        defineVariable(stmt.token);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt)
+    {
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt)
+    {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr)
+    {
+        getVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line - 1));
+        getVariable(expr.keyword);
+
+        line = expr.method.line;
+        emit(OpCode.GET_SUPER);
+        emitShort(nameConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr)
+    {
+        getVariable(expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr)
+    {
+        compile(expr.object);
+        compile(expr.value);
+
+        line = expr.name.line;
+        emit(OpCode.SET_PROPERTY);
+        emitShort(nameConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr)
+    {
+        compile(expr.object);
+
+        line = expr.name.line;
+        emit(OpCode.GET_PROPERTY);
+        emitShort(nameConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr)
+    {
+        compile(expr.value);
+        setVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr)
+    {
+        getVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr)
+    {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.OR)
+        {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+            return null;
+        }
+
+        int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr)
+    {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type)
+        {
+            case MINUS:         emit(OpCode.SUBTRACT); break;
+            case PLUS:          emit(OpCode.ADD); break;
+            case STAR:          emit(OpCode.MULTIPLY); break;
+            case SLASH:         emit(OpCode.DIVIDE); break;
+            case GREATER:       emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS:          emit(OpCode.LESS); break;
+            case LESS_EQUAL:    emit(OpCode.LESS_EQUAL); break;
+            case BANG_EQUAL:    emit(OpCode.EQUAL); emit(OpCode.NOT); break;
+            case EQUAL_EQUAL:   emit(OpCode.EQUAL); break;
+            default:
+                emit(OpCode.POP);
+                emit(OpCode.POP);
+                emit(OpCode.NIL);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr)
+    {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr)
+    {
+        if (expr.value == null) emit(OpCode.NIL);
+        else if (expr.value.equals(true)) emit(OpCode.TRUE);
+        else if (expr.value.equals(false)) emit(OpCode.FALSE);
+        else emitConstant(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr)
+    {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type)
+        {
+            case MINUS: emit(OpCode.NEGATE); break;
+            case BANG:  emit(OpCode.NOT); break;
+            default:
+                emit(OpCode.POP);
+                emit(OpCode.NIL);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr)
+    {
+        call(expr, false);
+        return null;
+    }
+
+    private void call(Expr.Call expr, boolean tail)
+    {
+        if (expr.arguments.size() > 255)
+        {
+            Lox.error(expr.paren, "Can't have more than 255 arguments.");
+        }
+
+        // obj.method(...) is dispatched directly instead of allocating a
+        // bound method for the call.
+        if (expr.callee instanceof Expr.Get)
+        {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            for (Expr argument : expr.arguments)
+            {
+                compile(argument);
+            }
+
+            line = expr.paren.line;
+            emit(tail ? OpCode.TAIL_INVOKE : OpCode.INVOKE);
+            emitShort(nameConstant(get.name.lexeme));
+            emit(expr.arguments.size());
+            return;
+        }
+
+        compile(expr.callee);
+        for (Expr argument : expr.arguments)
+        {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emit(tail ? OpCode.TAIL_CALL : OpCode.CALL);
+        emit(expr.arguments.size());
+    }
+}
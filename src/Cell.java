@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+// Box for a local captured by a closure. The frame declaring the local and
+// every closure capturing it share the Cell, so assignments are seen by all.
+final class Cell
+{
+	Object value;
+
+	Cell(Object value)
+	{
+		this.value = value;
+	}
+}
@@ -0,0 +1,43 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// A compiled function body: the bytecode, the source line of every byte
+// and the constant pool the instructions index into.
+class Chunk
+{
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    final List<Object> constants = new ArrayList<>();
+
+    // The String constants that are names rather than string literals.
+    final BitSet names = new BitSet();
+
+    // Cells of the globals named by the constants of GET_GLOBAL and
+    // SET_GLOBAL, linked by the VM the first time each instruction runs.
+    Cell[] globals = null;
+
+    void write(int value, int line)
+    {
+        if (count == code.length)
+        {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+
+        code[count] = (byte)value;
+        lines[count] = line;
+        ++count;
+    }
+
+    int addConstant(Object value)
+    {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+}
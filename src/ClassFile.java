@@ -0,0 +1,261 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal class file writer for the classes generated by JvmCompiler. It
+// emits version 49 class files, which the JVM verifies by type inference,
+// so no StackMapTable frames have to be computed.
+class ClassFile
+{
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<>();
+    private final ByteArrayOutputStream members = new ByteArrayOutputStream();
+    private final DataOutputStream membersOut = new DataOutputStream(members);
+    private int fieldCount = 0;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int methodCount = 0;
+
+    ClassFile(String name, String superName, String... interfaceNames)
+    {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        for (String interfaceName : interfaceNames)
+        {
+            interfaces.add(classRef(interfaceName));
+        }
+    }
+
+    int utf8(String value)
+    {
+        return constant("U" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName)
+    {
+        int name = utf8(internalName);
+        return constant("C" + internalName, out -> {
+            out.writeByte(7);
+            out.writeShort(name);
+        });
+    }
+
+    int integer(int value)
+    {
+        return constant("I" + value, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor)
+    {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor)
+    {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor)
+    {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant(tag + owner + "." + name + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    void addField(int access, String name, String descriptor)
+    {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        try
+        {
+            membersOut.writeShort(access);
+            membersOut.writeShort(nameIndex);
+            membersOut.writeShort(descriptorIndex);
+            membersOut.writeShort(0);
+        }
+        catch (IOException error)
+        {
+            throw new IllegalStateException(error);
+        }
+        ++fieldCount;
+    }
+
+    void addMethod(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code)
+    {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeIndex = utf8("Code");
+        try
+        {
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(nameIndex);
+            methodsOut.writeShort(descriptorIndex);
+            methodsOut.writeShort(1);
+
+            methodsOut.writeShort(codeIndex);
+            methodsOut.writeInt(12 + code.length);
+            methodsOut.writeShort(maxStack);
+            methodsOut.writeShort(maxLocals);
+            methodsOut.writeInt(code.length);
+            methodsOut.write(code);
+            methodsOut.writeShort(0);   // exception table
+            methodsOut.writeShort(0);   // attributes
+        }
+        catch (IOException error)
+        {
+            throw new IllegalStateException(error);
+        }
+        ++methodCount;
+    }
+
+    byte[] toByteArray()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int index : interfaces)
+            {
+                out.writeShort(index);
+            }
+            out.writeShort(fieldCount);
+            out.write(members.toByteArray());
+            out.writeShort(methodCount);
+            out.write(methods.toByteArray());
+            out.writeShort(0);
+        }
+        catch (IOException error)
+        {
+            throw new IllegalStateException(error);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface Entry
+    {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, Entry entry)
+    {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+
+        try
+        {
+            entry.write(poolOut);
+        }
+        catch (IOException error)
+        {
+            throw new IllegalStateException(error);
+        }
+
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // Growable bytecode buffer for one method, tracking the operand stack
+    // depth so max_stack can be filled in.
+    static class Code
+    {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        int maxStack = 0;
+
+        int position()
+        {
+            return length;
+        }
+
+        void op(int opcode, int stackDelta)
+        {
+            u1(opcode);
+            adjust(stackDelta);
+        }
+
+        void adjust(int stackDelta)
+        {
+            stack += stackDelta;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        void setStack(int depth)
+        {
+            stack = depth;
+        }
+
+        int stack()
+        {
+            return stack;
+        }
+
+        void u1(int value)
+        {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte)value;
+        }
+
+        void u2(int value)
+        {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void patch(int at, int value)
+        {
+            bytes[at] = (byte)(value >> 8);
+            bytes[at + 1] = (byte)value;
+        }
+
+        byte[] toByteArray()
+        {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
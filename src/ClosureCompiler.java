@@ -0,0 +1,721 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.Interpreter.*;
+
+/*
+ * Alternative execution engine: once the Resolver has run, every Stmt and
+ * Expr is turned into a small node object with its operator, constant and
+ * resolved slot already baked in. Executing the program is then a plain
+ * call through those nodes, with no visitor double dispatch.
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.ExprNode>, Stmt.Visitor<ClosureCompiler.StmtNode>
+{
+    interface ExprNode
+    {
+        Object evaluate(Environment environment);
+    }
+
+    // Statements return NORMAL when they complete, or the value of the
+    // 'return' that ended them, so returns never unwind through exceptions.
+    interface StmtNode
+    {
+        Object execute(Environment environment);
+    }
+
+    static final Object NORMAL = Interpreter.NORMAL;
+
+    final Environment globals = new Environment();
+
+    ClosureCompiler()
+    {
+        defineNatives(globals);
+    }
+
+    void interpret(List<Stmt> statements, int frameSize)
+    {
+        List<StmtNode> nodes = new ArrayList<>();
+        for (Stmt statement : statements)
+        {
+            if (statement == null) break;
+            nodes.add(compile(statement));
+        }
+
+        Environment frame = new Environment(frameSize, null);
+        try
+        {
+            for (StmtNode node : nodes)
+            {
+                if (node.execute(frame) != NORMAL) break;
+            }
+        }
+        catch (RuntimeError error)
+        {
+            Lox.runtimeError(error);
+        }
+        catch (DeferredBody.Invalid invalid)
+        {
+        }
+    }
+
+    private ExprNode compile(Expr expr)
+    {
+        return expr.accept(this);
+    }
+
+    private StmtNode compile(Stmt stmt)
+    {
+        return stmt.accept(this);
+    }
+
+    private StmtNode[] compile(List<Stmt> statements)
+    {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; ++i)
+        {
+            nodes[i] = compile(statements.get(i));
+        }
+        return nodes;
+    }
+
+    // Runs the statements directly in the given environment, used for
+    // function bodies, whose frame is created by LoxFunction.call, and for
+    // blocks, whose locals live in the frame around them.
+    private StmtNode sequence(List<Stmt> statements)
+    {
+        StmtNode[] nodes = compile(statements);
+        return environment -> {
+            for (StmtNode node : nodes)
+            {
+                Object completion = node.execute(environment);
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        };
+    }
+
+    private StmtNode define(Token name, int slot, boolean captured, ExprNode value)
+    {
+        if (slot == -1)
+        {
+            String key = name.lexeme;
+            return environment -> {
+                globals.define(key, value.evaluate(environment));
+                return NORMAL;
+            };
+        }
+        if (captured)
+        {
+            return environment -> {
+                environment.define(slot, new Cell(value.evaluate(environment)));
+                return NORMAL;
+            };
+        }
+        return environment -> {
+            environment.define(slot, value.evaluate(environment));
+            return NORMAL;
+        };
+    }
+
+    private ExprNode lookUpVariable(Token name, Access access, int index)
+    {
+        switch (access)
+        {
+            case LOCAL:   return environment -> environment.get(index);
+            case CELL:    return environment -> environment.cell(index).value;
+            case UPVALUE: return environment -> environment.upvalues[index].value;
+            default:
+            {
+                // Linked now, the global may still be defined later.
+                Cell global = globals.global(name.lexeme);
+                return environment -> Environment.get(global, name);
+            }
+        }
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt)
+    {
+        Token name = stmt.name;
+        ExprNode superclassNode = stmt.superclass != null ? compile(stmt.superclass) : null;
+
+        Map<String, StmtNode> methodBodies = new HashMap<>();
+        for (Stmt.Function method : stmt.methods)
+        {
+            methodBodies.put(method.name.lexeme, sequence(method.body));
+        }
+
+        List<StmtNode> staticBodies = new ArrayList<>();
+        List<ExprNode> staticInitializers = new ArrayList<>();
+        for (Stmt field : stmt.fields)
+        {
+            if (field instanceof Stmt.Function)
+            {
+                staticBodies.add(sequence(((Stmt.Function)field).body));
+                staticInitializers.add(null);
+            }
+            else
+            {
+                Expr initializer = ((Stmt.Var)field).initializer;
+                staticBodies.add(null);
+                staticInitializers.add(initializer != null ? compile(initializer) : null);
+            }
+        }
+
+        return environment -> {
+            Object superclass = null;
+            if (superclassNode != null)
+            {
+                superclass = superclassNode.evaluate(environment);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+                }
+            }
+
+            Cell cell = stmt.captured ? new Cell(null) : null;
+            if (stmt.slot == -1) globals.define(name.lexeme, null);
+            else environment.define(stmt.slot, cell);
+
+            if (superclass != null) {
+                environment.define(stmt.superSlot, new Cell(superclass));
+            }
+
+            Map<String, LoxFunction> methods = new HashMap<>();
+            for (Stmt.Function method : stmt.methods) {
+                boolean isInitializer = method.name.lexeme.equals("init");
+                methods.put(method.name.lexeme, new LoxFunction(method, environment.capture(method.upvalues), isInitializer, methodBodies.get(method.name.lexeme)));
+            }
+            LoxClass klass = new LoxClass(name.lexeme, (LoxClass)superclass, methods);
+
+            for (int i = 0; i < stmt.fields.size(); ++i)
+            {
+                Stmt field = stmt.fields.get(i);
+                if (field instanceof Stmt.Function)
+                {
+                    Stmt.Function function = (Stmt.Function)field;
+                    klass.set(function.name, new LoxFunction(function, environment.capture(function.upvalues), false, staticBodies.get(i)));
+                }
+                else
+                {
+                    ExprNode initializer = staticInitializers.get(i);
+                    Object value = initializer != null ? initializer.evaluate(environment) : null;
+                    klass.set(((Stmt.Var)field).token, value);
+                }
+            }
+
+            if (stmt.slot == -1) globals.define(name.lexeme, klass);
+            else if (cell != null) cell.value = klass;
+            else environment.define(stmt.slot, klass);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt)
+    {
+        if (stmt.value == null) return environment -> null;
+
+        if (stmt.tailCall)
+        {
+            ExprNode call = compileCall((Expr.Call)stmt.value, true);
+            return environment -> call.evaluate(environment);
+        }
+
+        ExprNode value = compile(stmt.value);
+        return environment -> value.evaluate(environment);
+    }
+
+    // The body of a lazily parsed function is only there once LoxFunction
+    // has completed it on the first call, and compiled then.
+    private StmtNode deferred(Stmt.Function stmt)
+    {
+        StmtNode[] body = new StmtNode[1];
+        return environment -> {
+            if (body[0] == null) body[0] = sequence(stmt.body);
+            return body[0].execute(environment);
+        };
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt)
+    {
+        StmtNode body = stmt.deferred == null ? sequence(stmt.body) : deferred(stmt);
+        if (!stmt.captured)
+        {
+            return define(stmt.name, stmt.slot, false, environment -> new LoxFunction(stmt, environment.capture(stmt.upvalues), false, body));
+        }
+
+        // The Cell exists before the closure is created, so the function
+        // can capture itself.
+        int slot = stmt.slot;
+        return environment -> {
+            Cell cell = new Cell(null);
+            environment.define(slot, cell);
+            cell.value = new LoxFunction(stmt, environment.capture(stmt.upvalues), false, body);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt)
+    {
+        return sequence(stmt.statements);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt)
+    {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode thenBranch = compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null)
+        {
+            return environment -> {
+                if (isTruthy(condition.evaluate(environment))) return thenBranch.execute(environment);
+                return NORMAL;
+            };
+        }
+
+        StmtNode elseBranch = compile(stmt.elseBranch);
+        return environment -> {
+            if (isTruthy(condition.evaluate(environment))) return thenBranch.execute(environment);
+            return elseBranch.execute(environment);
+        };
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt)
+    {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode body = compile(stmt.body);
+        return environment -> {
+            while (isTruthy(condition.evaluate(environment)))
+            {
+                Object completion = body.execute(environment);
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt)
+    {
+        ExprNode initializer = stmt.initializer != null ? compile(stmt.initializer) : environment -> null;
+        return define(stmt.token, stmt.slot, stmt.captured, initializer);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt)
+    {
+        ExprNode expression = compile(stmt.expression);
+        return environment -> {
+            expression.evaluate(environment);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt)
+    {
+        ExprNode expression = compile(stmt.expression);
+        return environment -> {
+            System.out.println(stringify(expression.evaluate(environment)));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr)
+    {
+        ExprNode superclassNode = lookUpVariable(expr.keyword, expr.access, expr.index);
+        ExprNode instanceNode = lookUpVariable(expr.keyword, expr.thisAccess, expr.thisIndex);
+        Token method = expr.method;
+        return environment -> {
+            LoxClass superclass = (LoxClass)superclassNode.evaluate(environment);
+            LoxInstance instance = (LoxInstance)instanceNode.evaluate(environment);
+            LoxFunction function = superclass.findMethod(method.lexeme);
+
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property " + method.lexeme + ".");
+            }
+
+            return function.bind(instance);
+        };
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr)
+    {
+        return lookUpVariable(expr.keyword, expr.access, expr.index);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr)
+    {
+        ExprNode object = compile(expr.object);
+        ExprNode value = compile(expr.value);
+        Token name = expr.name;
+        PropertyCache cache = expr.cache;
+        return environment -> {
+            Object instance = object.evaluate(environment);
+
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instance have fields.");
+            }
+
+            Object result = value.evaluate(environment);
+            ((LoxInstance)instance).set(name, result, cache);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr)
+    {
+        ExprNode object = compile(expr.object);
+        Token name = expr.name;
+        PropertyCache cache = expr.cache;
+        return environment -> {
+            Object instance = object.evaluate(environment);
+
+            if (instance instanceof LoxInstance) {
+                return ((LoxInstance)instance).get(name, cache);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr)
+    {
+        ExprNode value = compile(expr.value);
+        int index = expr.index;
+
+        switch (expr.access)
+        {
+            case LOCAL:
+                return environment -> {
+                    Object result = value.evaluate(environment);
+                    environment.define(index, result);
+                    return result;
+                };
+            case CELL:
+                return environment -> {
+                    Object result = value.evaluate(environment);
+                    environment.cell(index).value = result;
+                    return result;
+                };
+            case UPVALUE:
+                return environment -> {
+                    Object result = value.evaluate(environment);
+                    environment.upvalues[index].value = result;
+                    return result;
+                };
+        }
+
+        Token name = expr.name;
+        Cell global = globals.global(name.lexeme);
+        return environment -> {
+            Object result = value.evaluate(environment);
+            Environment.assign(global, name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr)
+    {
+        return lookUpVariable(expr.name, expr.access, expr.index);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr)
+    {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR)
+        {
+            return environment -> {
+                Object value = left.evaluate(environment);
+                if (isTruthy(value)) return value;
+                return right.evaluate(environment);
+            };
+        }
+
+        return environment -> {
+            Object value = left.evaluate(environment);
+            if (!isTruthy(value)) return value;
+            return right.evaluate(environment);
+        };
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr)
+    {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type)
+        {
+            case MINUS:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a - (double)b;
+                };
+            case PLUS:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    if (a instanceof Double && b instanceof Double)
+                    {
+                        return (double)a + (double)b;
+                    }
+                    if (a instanceof String && b instanceof String)
+                    {
+                        return (String)a + (String)b;
+                    }
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+                };
+            case STAR:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a * (double)b;
+                };
+            case SLASH:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a / (double)b;
+                };
+            case GREATER:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a > (double)b;
+                };
+            case GREATER_EQUAL:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a >= (double)b;
+                };
+            case LESS:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a < (double)b;
+                };
+            case LESS_EQUAL:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a <= (double)b;
+                };
+            case BANG_EQUAL:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return !isEqual(a, b);
+                };
+            case EQUAL_EQUAL:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return isEqual(a, b);
+                };
+        }
+
+        return environment -> {
+            left.evaluate(environment);
+            right.evaluate(environment);
+            return null;
+        };
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr)
+    {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr)
+    {
+        Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr)
+    {
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type)
+        {
+            case MINUS:
+                return environment -> {
+                    Object value = right.evaluate(environment);
+                    checkNumberOperand(operator, value);
+                    return -(double)value;
+                };
+            case BANG:
+                return environment -> !isTruthy(right.evaluate(environment));
+        }
+
+        return environment -> {
+            right.evaluate(environment);
+            return null;
+        };
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr)
+    {
+        // See Interpreter.visitCallExpr.
+        ExprNode call = compileCall(expr, false);
+        Token paren = expr.paren;
+        return environment -> {
+            try
+            {
+                return call.evaluate(environment);
+            }
+            catch (StackOverflowError overflow)
+            {
+                throw new RuntimeError(paren, "Stack overflow.");
+            }
+        };
+    }
+
+    // A call in tail position hands Lox functions back to the trampoline in
+    // LoxFunction as a TailCall instead of calling them. Other calls with up
+    // to four arguments use the LoxCallable entry point for their arity.
+    // Compiled functions carry their own body, they never reach back into
+    // the tree-walking Interpreter.
+    private ExprNode compileCall(Expr.Call expr, boolean tail)
+    {
+        ExprNode callee = compile(expr.callee);
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; ++i)
+        {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        if (!tail)
+        {
+            switch (arguments.length)
+            {
+                case 0:
+                    return environment -> {
+                        LoxCallable function = callable(callee.evaluate(environment), paren);
+                        checkArity(function, 0, paren);
+                        return function.call(null);
+                    };
+                case 1:
+                {
+                    ExprNode a = arguments[0];
+                    return environment -> {
+                        LoxCallable function = callable(callee.evaluate(environment), paren);
+                        Object x = a.evaluate(environment);
+                        checkArity(function, 1, paren);
+                        return function.call(null, x);
+                    };
+                }
+                case 2:
+                {
+                    ExprNode a = arguments[0];
+                    ExprNode b = arguments[1];
+                    return environment -> {
+                        LoxCallable function = callable(callee.evaluate(environment), paren);
+                        Object x = a.evaluate(environment);
+                        Object y = b.evaluate(environment);
+                        checkArity(function, 2, paren);
+                        return function.call(null, x, y);
+                    };
+                }
+                case 3:
+                {
+                    ExprNode a = arguments[0];
+                    ExprNode b = arguments[1];
+                    ExprNode c = arguments[2];
+                    return environment -> {
+                        LoxCallable function = callable(callee.evaluate(environment), paren);
+                        Object x = a.evaluate(environment);
+                        Object y = b.evaluate(environment);
+                        Object z = c.evaluate(environment);
+                        checkArity(function, 3, paren);
+                        return function.call(null, x, y, z);
+                    };
+                }
+                case 4:
+                {
+                    ExprNode a = arguments[0];
+                    ExprNode b = arguments[1];
+                    ExprNode c = arguments[2];
+                    ExprNode d = arguments[3];
+                    return environment -> {
+                        LoxCallable function = callable(callee.evaluate(environment), paren);
+                        Object x = a.evaluate(environment);
+                        Object y = b.evaluate(environment);
+                        Object z = c.evaluate(environment);
+                        Object w = d.evaluate(environment);
+                        checkArity(function, 4, paren);
+                        return function.call(null, x, y, z, w);
+                    };
+                }
+            }
+        }
+
+        return environment -> {
+            LoxCallable function = callable(callee.evaluate(environment), paren);
+
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; ++i)
+            {
+                values[i] = arguments[i].evaluate(environment);
+            }
+
+            checkArity(function, values.length, paren);
+
+            if (tail && function instanceof LoxFunction) return ((LoxFunction)function).tailCall(values);
+            return function.call(null, values);
+        };
+    }
+
+    private static LoxCallable callable(Object function, Token paren)
+    {
+        if (!(function instanceof LoxCallable))
+        {
+            throw new RuntimeError(paren, "Object not callable: can only call functions and classes");
+        }
+        return (LoxCallable)function;
+    }
+
+    private static void checkArity(LoxCallable function, int count, Token paren)
+    {
+        if (count != function.arity())
+        {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " number of arguments but got " + count + ".");
+        }
+    }
+}
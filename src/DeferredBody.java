@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// Body of a top-level function that the Parser skipped in lazy mode, kept
+// as the position of its first token. It is parsed, resolved and optimized
+// the first time the function is called, so functions that never run cost
+// no more than scanning. A top-level function can only close over globals,
+// which are looked up at runtime, so nothing about the scopes around it
+// needs to be recorded.
+final class DeferredBody
+{
+    private final TokenStream tokens;
+    private final int start;
+
+    DeferredBody(TokenStream tokens, int start)
+    {
+        this.tokens = tokens;
+        this.start = start;
+    }
+
+    void complete(Stmt.Function function)
+    {
+        List<Stmt> body = new Parser(tokens, start).parseBody();
+        if (!Lox.hadError)
+        {
+            function.body.addAll(body);
+            new Resolver().resolveDeferred(function);
+        }
+
+        if (Lox.hadError)
+        {
+            function.body.clear();
+            throw new Invalid();
+        }
+
+        new Optimizer().optimize(function.body);
+        function.deferred = null;
+    }
+
+    // Stops the script once the errors in a body have been reported, which
+    // is all there is to say about them. Built without a stack trace, like
+    // UnexpectedResultException.
+    static final class Invalid extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        Invalid()
+        {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -3,83 +3,105 @@ package com.craftinginterpreters.lox;
 import static com.craftinginterpreters.lox.Token.*;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 class Environment
 {
-	final Environment enclosing;
-
-	private final Map<String, Object> values = new HashMap<>();
+	// Globals live in a Cell per name, which sites naming the global link
+	// to on first use. Every call gets a frame of its own with a slot for
+	// each local the Resolver laid out in the function, and the upvalues of
+	// the closure being run.
+	private final Map<String, Cell> values;
+	private final Object[] slots;
+	final Cell[] upvalues;
 
 	Environment() {
-		enclosing = null;
+		values = new HashMap<>();
+		slots = null;
+		upvalues = null;
 	}
 
-	Environment(Environment enclosing) {
-		this.enclosing = enclosing;
+	Environment(int size, Cell[] upvalues) {
+		values = null;
+		slots = new Object[size];
+		this.upvalues = upvalues;
 	}
 
+	// Value of the Cells of globals that are not defined yet.
+	private static final Object UNDEFINED = new Object();
+
 	void define(String name, Object value)
 	{
-		values.put(name, value);
+		global(name).value = value;
 	}
 
-	void assign(Token name, Object value)
+	void define(int slot, Object value)
 	{
-		if (values.containsKey(name.lexeme))
-		{
-			values.put(name.lexeme, value);
-			return;
-		}
-
-		if (enclosing != null) {
-			enclosing.assign(name, value);
-			return;
-		}
+		slots[slot] = value;
+	}
 
-		throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'");
+	void assign(Token name, Object value)
+	{
+		assign(global(name.lexeme), name, value);
 	}
 
-	void assignAt(Integer distance, Token name, Object value)
+	Object get(Token name)
 	{
-		if (distance <= 0) {
-			assign(name, value);
-			return;
-		}
+		return get(global(name.lexeme), name);
+	}
 
-		if (enclosing != null) {
-			enclosing.assignAt(distance - 1, name, value);
-			return ;
+	// The Cell of a global. Names that are not defined yet get an undefined
+	// Cell, so a site can link to it before a later REPL line or a later
+	// statement defines the global. Redefining a global reuses its Cell.
+	Cell global(String name)
+	{
+		Cell cell = values.get(name);
+		if (cell == null)
+		{
+			cell = new Cell(UNDEFINED);
+			values.put(name, cell);
 		}
-
-		throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'");
+		return cell;
 	}
 
-	Object get(Token name)
+	static void assign(Cell global, Token name, Object value)
 	{
-		if (values.containsKey(name.lexeme))
+		if (global.value == UNDEFINED)
 		{
-			return values.get(name.lexeme);
+			throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'");
 		}
-
-		if (enclosing != null) return enclosing.get(name);
-
-		throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'");
+		global.value = value;
 	}
 
-	Object getAt(Integer distance, Token name)
+	static Object get(Cell global, Token name)
 	{
-		if (distance <= 0) {
-			return get(name);
+		if (global.value == UNDEFINED)
+		{
+			throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'");
 		}
+		return global.value;
+	}
 
-		if (enclosing != null)
-			return enclosing.getAt(distance - 1, name);
+	Object get(int slot)
+	{
+		return slots[slot];
+	}
 
-		throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'");
+	Cell cell(int slot)
+	{
+		return (Cell)slots[slot];
 	}
 
-	Object getAt(Integer distance, String name) {
-		return getAt(distance, new Token(TokenType.STRING, name, null, -1));
+	// The upvalues of a closure created in this frame.
+	Cell[] capture(List<Upvalue> descriptors)
+	{
+		Cell[] cells = new Cell[descriptors.size()];
+		for (int i = 0; i < cells.length; ++i)
+		{
+			Upvalue upvalue = descriptors.get(i);
+			cells[i] = upvalue.isLocal ? cell(upvalue.index) : upvalues[upvalue.index];
+		}
+		return cells;
 	}
-}
\ No newline at end of file
+}
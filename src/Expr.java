@@ -41,6 +41,12 @@ abstract class Expr
 		Token keyword;
 		Token method;
 
+		// Resolved fields
+		Access access = Access.GLOBAL;
+		int index;
+		Access thisAccess = Access.GLOBAL;
+		int thisIndex;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitSuperExpr(this);
@@ -56,6 +62,10 @@ abstract class Expr
 
 		Token keyword;
 
+		// Resolved fields
+		Access access = Access.GLOBAL;
+		int index;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitThisExpr(this);
@@ -75,6 +85,9 @@ abstract class Expr
 		Token name;
 		Expr value;
 
+		// Resolved fields
+		PropertyCache cache = new PropertyCache();
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitSetExpr(this);
@@ -92,6 +105,9 @@ abstract class Expr
 		Expr object;
 		Token name;
 
+		// Resolved fields
+		PropertyCache cache = new PropertyCache();
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitGetExpr(this);
@@ -109,6 +125,11 @@ abstract class Expr
 		Token name;
 		Expr value;
 
+		// Resolved fields
+		Access access = Access.GLOBAL;
+		int index;
+		Cell global;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitAssignExpr(this);
@@ -124,6 +145,12 @@ abstract class Expr
 
 		Token name;
 
+		// Resolved fields
+		Access access = Access.GLOBAL;
+		int index;
+		Stmt.Var declaration;
+		Cell global;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitVariableExpr(this);
@@ -143,6 +170,9 @@ abstract class Expr
 		Token operator;
 		Expr right;
 
+		// Resolved fields
+		LogicalOperation operation = LogicalOperation.UNINITIALIZED;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitLogicalExpr(this);
@@ -162,6 +192,9 @@ abstract class Expr
 		Token operator;
 		Expr right;
 
+		// Resolved fields
+		BinaryOperation operation = BinaryOperation.UNINITIALIZED;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitBinaryExpr(this);
@@ -209,6 +242,9 @@ abstract class Expr
 		Token operator;
 		Expr right;
 
+		// Resolved fields
+		UnaryOperation operation = UnaryOperation.UNINITIALIZED;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitUnaryExpr(this);
@@ -19,28 +19,28 @@ public class GenerateAst
         String output_directory = argv[0];
 
         defineAst(output_directory, "Expr", Arrays.asList(
-            "Super      : Token keyword, Token method",
-            "This       : Token keyword",
-            "Set        : Expr object, Token name, Expr value",
-            "Get        : Expr object, Token name",
-            "Assign     : Token name, Expr value",
-            "Variable   : Token name",
-            "Logical    : Expr left, Token operator, Expr right",
-            "Binary     : Expr left, Token operator, Expr right",
+            "Super      : Token keyword, Token method | Access access = Access.GLOBAL, int index, Access thisAccess = Access.GLOBAL, int thisIndex",
+            "This       : Token keyword | Access access = Access.GLOBAL, int index",
+            "Set        : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+            "Get        : Expr object, Token name | PropertyCache cache = new PropertyCache()",
+            "Assign     : Token name, Expr value | Access access = Access.GLOBAL, int index, Cell global",
+            "Variable   : Token name | Access access = Access.GLOBAL, int index, Stmt.Var declaration, Cell global",
+            "Logical    : Expr left, Token operator, Expr right | LogicalOperation operation = LogicalOperation.UNINITIALIZED",
+            "Binary     : Expr left, Token operator, Expr right | BinaryOperation operation = BinaryOperation.UNINITIALIZED",
             "Grouping   : Expr expression",
             "Literal    : Object value",
-            "Unary      : Token operator, Expr right",
+            "Unary      : Token operator, Expr right | UnaryOperation operation = UnaryOperation.UNINITIALIZED",
             "Call       : Expr callee, Token paren, List<Expr> arguments"
             )
         );
         defineAst(output_directory, "Stmt", Arrays.asList(
-            "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt> fields",
-            "Return     : Token keyword, Expr value",
-            "Function   : Token name, List<Token> parameters, List<Stmt> body",
+            "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt> fields | int slot, boolean captured, int superSlot",
+            "Return     : Token keyword, Expr value | boolean tailCall",
+            "Function   : Token name, List<Token> parameters, List<Stmt> body | int slot, boolean captured, int frameSize, List<Upvalue> upvalues, int[] capturedParameters, DeferredBody deferred",
             "Block      : List<Stmt> statements",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "While      : Expr condition, Stmt body",
-            "Var        : Token token, Expr initializer",
+            "Var        : Token token, Expr initializer | int slot, boolean captured, boolean reassigned",
             "Expression : Expr expression",
             "Print      : Expr expression"
             )
@@ -79,7 +79,16 @@ public class GenerateAst
         {
             String class_name = type.split(":")[0].trim();         
             String fields = type.split(":")[1].trim(); 
-            defineType(writer, base_name, class_name, fields);
+
+            // Fields after a '|' are not part of the constructor, they are
+            // filled in later by the Resolver.
+            String resolved_fields = null;
+            if (fields.contains("|"))
+            {
+                resolved_fields = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+            defineType(writer, base_name, class_name, fields, resolved_fields);
         }
 
         writer.println();
@@ -91,7 +100,7 @@ public class GenerateAst
     }
 
 
-    private static void defineType(PrintWriter writer, String base_name, String class_name, String fields_string)
+    private static void defineType(PrintWriter writer, String base_name, String class_name, String fields_string, String resolved_fields_string)
     {
 
         writer.println("\tstatic class " + class_name + " extends " + base_name);
@@ -117,6 +126,16 @@ public class GenerateAst
             writer.println("\t\t" + field + ";");
         }
 
+        if (resolved_fields_string != null)
+        {
+            writer.println();
+            writer.println("\t\t// Resolved fields");
+            for (String field : resolved_fields_string.split(", "))
+            {
+                writer.println("\t\t" + field + ";");
+            }
+        }
+
         writer.println();
         writer.println("\t\t<R> R accept(Visitor<R> visitor)");
         writer.println("\t\t{");
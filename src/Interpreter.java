@@ -9,20 +9,27 @@ import com.craftinginterpreters.lox.LoxCallable;
 import com.craftinginterpreters.lox.LoxInstance;
 import com.craftinginterpreters.lox.RuntimeError;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object>
 {
-    final Environment globals = new Environment();
+    // Statements complete with NORMAL, or with the value of the 'return'
+    // that ended them, which is handed up as a plain Java return value.
+    static final Object NORMAL = new Object();
 
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final Environment globals = new Environment();
 
-    private Environment environment = globals;
+    // Frame of the function being run, or of top-level code.
+    private Environment environment;
 
     Interpreter()
+    {
+        defineNatives(globals);
+    }
+
+    static void defineNatives(Environment globals)
     {
         globals.define("clock", new LoxCallable() {
                     
@@ -30,7 +37,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
                     public int arity() { return 0;}
 
                     @Override
-                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                    public Object call(Interpreter interpreter, Object[] arguments) {
                         return (double)System.currentTimeMillis() / 1000.0;
                     }
 
@@ -40,8 +47,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         );
     }
 
-    void interpret(List<Stmt> statements)
+    void interpret(List<Stmt> statements, int frameSize)
     {
+        environment = new Environment(frameSize, null);
+
         try
         {
             for (Stmt statement : statements)
@@ -57,31 +66,51 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         {
             Lox.runtimeError(error);
         }
+        catch (DeferredBody.Invalid invalid)
+        {
+        }
     }
 
-    private Object evaluate(Expr expr)
+    Object evaluate(Expr expr)
     {
         return expr.accept(this);
     }
 
-    private void execute(Stmt statement)
+    // Evaluates an operand of a number-specialized operation. Arithmetic
+    // sites hand back a primitive, so nested arithmetic never boxes its
+    // intermediate results.
+    double evaluateDouble(Expr expr) throws UnexpectedResultException
+    {
+        if (expr instanceof Expr.Binary)
+        {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return binary.operation.executeDouble(this, binary);
+        }
+        if (expr instanceof Expr.Unary)
+        {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return unary.operation.executeDouble(this, unary);
+        }
+
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResultException(value);
+    }
+
+    private Object execute(Stmt statement)
     {
         if (statement == null)
         {
             System.out.println("[FATAL INTERNAL ERROR] Interpreter tried to execute a null statement !");
 
         }
-        statement.accept(this);
-    }
-
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+        return statement.accept(this);
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
 
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.access, expr.index);
     }
 
 
@@ -94,7 +123,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        ((LoxInstance)object).set(expr.name, value, expr.cache);
 
         return value;
     }
@@ -102,10 +131,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
 
-        int distance = locals.get(expr);
-
-        LoxClass superclass = (LoxClass)environment.getAt(distance, expr.keyword);
-        LoxInstance instance = (LoxInstance)environment.getAt(distance - 1, "this");
+        LoxClass superclass = (LoxClass)lookUpVariable(expr.keyword, expr.access, expr.index);
+        LoxInstance instance = (LoxInstance)lookUpVariable(expr.keyword, expr.thisAccess, expr.thisIndex);
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
         if (method == null) {
@@ -121,14 +148,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         Object object = evaluate(expr.object);
 
         if (object instanceof LoxInstance) {
-            return ((LoxInstance)object).get(expr.name);
+            return ((LoxInstance)object).get(expr.name, expr.cache);
         }
 
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt)
+    public Object visitClassStmt(Stmt.Class stmt)
     {
         Object superclass = null;
         if (stmt.superclass != null)
@@ -139,16 +166,15 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        define(stmt.name, stmt.slot, stmt.captured, null);
 
         if (superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment.define(stmt.superSlot, new Cell(superclass));
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function func : stmt.methods) {
-            methods.put(func.name.lexeme, new LoxFunction(func, environment, func.name.lexeme.equals("init")));
+            methods.put(func.name.lexeme, new LoxFunction(func, environment.capture(func.upvalues), func.name.lexeme.equals("init")));
         }
         LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
 
@@ -156,7 +182,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         {
             if (field instanceof Stmt.Function)
             {
-                klass.set(((Stmt.Function)field).name, new LoxFunction(((Stmt.Function)field), environment, false));
+                Stmt.Function function = (Stmt.Function)field;
+                klass.set(function.name, new LoxFunction(function, environment.capture(function.upvalues), false));
             }
             else if (field instanceof Stmt.Var)
             {
@@ -166,65 +193,206 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
             }
         }
 
-        if (superclass != null) environment = environment.enclosing;
-
-        environment.assign(stmt.name, klass);
-        return null;           
+        assign(stmt.name, stmt.slot, stmt.captured, klass);
+        return NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt)
+    public Object visitReturnStmt(Stmt.Return stmt)
     {
         Object value = null;
 
+        if (stmt.tailCall) return tailCall((Expr.Call)stmt.value);
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        return value;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt)
+    public Object visitFunctionStmt(Stmt.Function stmt)
     {
-        globals.define(stmt.name.lexeme, new LoxFunction(stmt, environment, false));
-        return null;
+        // The Cell of a captured function exists before the closure is
+        // created, so the function can capture itself.
+        define(stmt.name, stmt.slot, stmt.captured, null);
+        assign(stmt.name, stmt.slot, stmt.captured, new LoxFunction(stmt, environment.capture(stmt.upvalues), false));
+        return NORMAL;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr)
     {
+        // Lox calls recurse on the Java stack, so running out of it is a
+        // Lox error like it is in the VM.
+        try
+        {
+            if (expr.callee instanceof Expr.Get) return invokeMethod((Expr.Get)expr.callee, expr, false);
+
+            return call(evaluate(expr.callee), expr, false);
+        }
+        catch (StackOverflowError overflow)
+        {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    // Evaluates the callee and arguments of a call in tail position. Calls
+    // to Lox functions come back as a LoxFunction.TailCall for the caller's
+    // trampoline, anything else is called right away.
+    private Object tailCall(Expr.Call expr)
+    {
+        if (expr.callee instanceof Expr.Get) return invokeMethod((Expr.Get)expr.callee, expr, true);
 
-        Object callee = evaluate(expr.callee);
+        return call(evaluate(expr.callee), expr, true);
+    }
+
+    // obj.name(...) calls a method with obj passed as the receiver instead
+    // of allocating a bound method that is thrown away right after the call.
+    private Object invokeMethod(Expr.Get callee, Expr.Call expr, boolean tail)
+    {
+        Object object = evaluate(callee.object);
+
+        if (!(object instanceof LoxInstance))
+        {
+            throw new RuntimeError(callee.name, "Only instances have properties.");
+        }
+
+        LoxInstance instance = (LoxInstance)object;
+        LoxFunction method = instance.method(callee.name, callee.cache);
+        if (method == null) return call(instance.get(callee.name, callee.cache), expr, tail);
+
+        if (tail) return method.tailInvoke(instance, evaluateArguments(expr, method));
+
+        // As in call, with the receiver passed along.
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size())
+        {
+            case 0:
+            {
+                checkArity(expr, method, 0);
+                return method.invoke(this, instance);
+            }
+            case 1:
+            {
+                Object a = evaluate(arguments.get(0));
+                checkArity(expr, method, 1);
+                return method.invoke(this, instance, a);
+            }
+            case 2:
+            {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                checkArity(expr, method, 2);
+                return method.invoke(this, instance, a, b);
+            }
+            case 3:
+            {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                checkArity(expr, method, 3);
+                return method.invoke(this, instance, a, b, c);
+            }
+            case 4:
+            {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                checkArity(expr, method, 4);
+                return method.invoke(this, instance, a, b, c, d);
+            }
+        }
+        return method.invoke(this, instance, evaluateArguments(expr, method));
+    }
 
+    private Object call(Object callee, Expr.Call expr, boolean tail)
+    {
         if (!(callee instanceof LoxCallable))
         {
             throw new RuntimeError(expr.paren, "Object not callable: can only call functions and classes");
         }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments)
+        LoxCallable function = (LoxCallable)callee;
+
+        if (tail && function instanceof LoxFunction)
         {
-            arguments.add(evaluate(argument));
+            return ((LoxFunction)function).tailCall(evaluateArguments(expr, function));
         }
 
-        LoxCallable function = (LoxCallable)callee;
+        // Arguments are evaluated in order before the arity is checked, as
+        // with evaluateArguments.
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size())
+        {
+            case 0:
+            {
+                checkArity(expr, function, 0);
+                return function.call(this);
+            }
+            case 1:
+            {
+                Object a = evaluate(arguments.get(0));
+                checkArity(expr, function, 1);
+                return function.call(this, a);
+            }
+            case 2:
+            {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                checkArity(expr, function, 2);
+                return function.call(this, a, b);
+            }
+            case 3:
+            {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                checkArity(expr, function, 3);
+                return function.call(this, a, b, c);
+            }
+            case 4:
+            {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                checkArity(expr, function, 4);
+                return function.call(this, a, b, c, d);
+            }
+        }
+        return function.call(this, evaluateArguments(expr, function));
+    }
 
-        if (arguments.size() != function.arity())
+    private Object[] evaluateArguments(Expr.Call expr, LoxCallable function)
+    {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; ++i)
         {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " number of arguments but got " + arguments.size() + ".");
+            arguments[i] = evaluate(expr.arguments.get(i));
         }
 
-        return function.call(this, arguments);
+        checkArity(expr, function, arguments.length);
+        return arguments;
+    }
+
+    private static void checkArity(Expr.Call expr, LoxCallable function, int count)
+    {
+        if (count != function.arity())
+        {
+            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " number of arguments but got " + count + ".");
+        }
     }
 
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt)
+    public Object visitWhileStmt(Stmt.While stmt)
     {
         while (isTruthy(evaluate(stmt.condition)))
         {
-            execute(stmt.body);
+            Object completion = execute(stmt.body);
+            if (completion != NORMAL) return completion;
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
@@ -232,40 +400,32 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     {
         Object left = evaluate(expr.left);
 
-        if (expr.operator.type == TokenType.OR)
-        {
-            if (isTruthy(left)) return left;
-        }
-        else
-        {
-            if (!isTruthy(left)) return left;
-        }
+        if (expr.operation.shortCircuits(expr, left)) return left;
 
         return evaluate(expr.right);
     }
 
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt)
+    public Object visitIfStmt(Stmt.If stmt)
     {
         Object condition = evaluate(stmt.condition);
 
         if (isTruthy(condition))
         {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         }
         else if (stmt.elseBranch != null)
         {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt)
+    public Object visitBlockStmt(Stmt.Block stmt)
     {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+        return executeStatements(stmt.statements);
     }
 
     @Override
@@ -273,13 +433,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr.name);
-
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        }
-    else {
-            environment.assign(expr.name, value);
+        switch (expr.access)
+        {
+            case LOCAL:   environment.define(expr.index, value); break;
+            case CELL:    environment.cell(expr.index).value = value; break;
+            case UPVALUE: environment.upvalues[expr.index].value = value; break;
+            default:      assignGlobal(expr, value); break;
         }
 
         return value;
@@ -288,11 +447,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     @Override
     public Object visitVariableExpr(Expr.Variable expr)
     {
-        return lookUpVariable(expr.name, expr);
+        if (expr.access == Access.GLOBAL) return lookUpGlobal(expr);
+
+        return lookUpVariable(expr.name, expr.access, expr.index);
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt)
+    public Object visitVarStmt(Stmt.Var stmt)
     {
         Object value = null;
 
@@ -300,23 +461,23 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.token.lexeme, value);
-        return null;
+        define(stmt.token, stmt.slot, stmt.captured, value);
+        return NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt)
+    public Object visitExpressionStmt(Stmt.Expression stmt)
     {
         evaluate(stmt.expression);
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt)
+    public Object visitPrintStmt(Stmt.Print stmt)
     {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return NORMAL;
     }
 
 
@@ -329,16 +490,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     @Override
     public Object visitUnaryExpr(Expr.Unary expr)
     {
-        Object right = evaluate(expr.right);
-        switch (expr.operator.type)
-        {
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
-            case BANG:
-                return !isTruthy(right);
-        }
-        return null;
+        return expr.operation.execute(this, expr);
     }
 
     @Override
@@ -350,75 +502,30 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     @Override
     public Object visitBinaryExpr(Expr.Binary expr)
     {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        return expr.operation.execute(this, expr);
+    }
 
-        switch (expr.operator.type)
-        {
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double)
-                {
-                    return (double)left + (double)right;
-                }
-                if (left instanceof String && right instanceof String)
-                {
-                    return (String)left + (String)right;
-                }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
-
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
-            case BANG_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return isEqual(left, right);
-        }
-
-        return null;
-    }
-
-    void checkNumberOperands(Token operator, Object left, Object right)
+    static void checkNumberOperands(Token operator, Object left, Object right)
     {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
 
     }
 
-    void checkNumberOperand(Token operator, Object operand)
+    static void checkNumberOperand(Token operator, Object operand)
     {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private boolean isEqual(Object left, Object right)
+    static boolean isEqual(Object left, Object right)
     {
         if (left == null && right == null) return true;
         if (left == null) return false;
         return left.equals(right);
     }
 
-    private Boolean isTruthy(Object object)
+    static boolean isTruthy(Object object)
     {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
@@ -426,7 +533,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         return true;
     }
 
-    private String stringify(Object object)
+    static String stringify(Object object)
     {
         if (object == null) return "nil";
 
@@ -443,17 +550,26 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         return object.toString();
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment)
+    // Blocks have no environment of their own: the Resolver gave their
+    // locals slots in the frame of the enclosing function.
+    private Object executeStatements(List<Stmt> statements)
+    {
+        for (Stmt statement : statements)
+        {
+            Object completion = execute(statement);
+            if (completion != NORMAL) return completion;
+        }
+        return NORMAL;
+    }
+
+    Object executeBlock(List<Stmt> statements, Environment environment)
     {
         Environment previous_environment = this.environment;
 
         try
         {
             this.environment = environment;
-            for (Stmt statement : statements)
-            {
-                execute(statement);
-            }
+            return executeStatements(statements);
         }
         finally
         {
@@ -461,15 +577,57 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         }
     }
 
-    private Object lookUpVariable(Token name, Expr expr)
+    // A captured local gets a fresh Cell each time its declaration runs, so
+    // closures created in different iterations of a loop don't share it.
+    private void define(Token name, int slot, boolean captured, Object value)
     {
-        Integer distance = locals.get(expr);
+        if (slot == -1) {
+            globals.define(name.lexeme, value);
+        }
+        else if (captured) {
+            environment.define(slot, new Cell(value));
+        }
+        else {
+            environment.define(slot, value);
+        }
+    }
 
-        if (distance != null) {
-            return environment.getAt(distance, name);
+    // Stores value into a variable that was just defined.
+    private void assign(Token name, int slot, boolean captured, Object value)
+    {
+        if (slot == -1) {
+            globals.define(name.lexeme, value);
+        }
+        else if (captured) {
+            environment.cell(slot).value = value;
         }
         else {
-            return globals.get(name);
+            environment.define(slot, value);
+        }
+    }
+
+    // Global sites link to the Cell of their global the first time they
+    // run, later accesses skip the lookup by name.
+    Object lookUpGlobal(Expr.Variable expr)
+    {
+        if (expr.global == null) expr.global = globals.global(expr.name.lexeme);
+        return Environment.get(expr.global, expr.name);
+    }
+
+    void assignGlobal(Expr.Assign expr, Object value)
+    {
+        if (expr.global == null) expr.global = globals.global(expr.name.lexeme);
+        Environment.assign(expr.global, expr.name, value);
+    }
+
+    private Object lookUpVariable(Token name, Access access, int index)
+    {
+        switch (access)
+        {
+            case LOCAL:   return environment.get(index);
+            case CELL:    return environment.cell(index).value;
+            case UPVALUE: return environment.upvalues[index].value;
+            default:      return globals.get(name);
         }
     }
 
@@ -0,0 +1,754 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compiles hot Lox functions to JVM bytecode, loaded as hidden classes, so
+ * HotSpot can inline and optimize Lox code directly. Lox locals become JVM
+ * locals and operations call the small static helpers at the bottom of
+ * this file, which the JIT inlines.
+ *
+ * Only functions that touch nothing but their own locals and globals are
+ * compiled: closures over enclosing scopes, 'this', 'super' and nested
+ * function or class declarations make compile() return null, and such
+ * functions stay on the tree walker.
+ */
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void>
+{
+    interface CompiledFunction
+    {
+        Object call(Interpreter interpreter, Object[] arguments);
+    }
+
+    static boolean enabled = true;
+
+    // Number of calls after which a function is compiled.
+    static final int THRESHOLD = 100;
+
+    private static final String PACKAGE = "com/craftinginterpreters/lox/";
+    private static final String SELF = PACKAGE + "JvmCompiler";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "L" + PACKAGE + "Token;";
+    private static final String INTERPRETER = "L" + PACKAGE + "Interpreter;";
+    private static final String CALL_DESCRIPTOR = "(" + INTERPRETER + "[" + OBJECT + ")" + OBJECT;
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int AALOAD = 0x32;
+    private static final int ASTORE = 0x3a;
+    private static final int AASTORE = 0x53;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int CHECKCAST = 0xc0;
+    private static final int WIDE = 0xc4;
+
+    private static class Unsupported extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    private final ClassFile classFile;
+    private final String className;
+    private final ClassFile.Code code = new ClassFile.Code();
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+
+    // Slot 0 of the Lox frame is JVM local 3, after this, the interpreter
+    // and the arguments array.
+    private static final int FRAME = 3;
+    private int maxLocals = FRAME;
+
+    private JvmCompiler(String name)
+    {
+        className = PACKAGE + "LoxJit_" + name;
+        classFile = new ClassFile(className, "java/lang/Object", SELF + "$CompiledFunction");
+    }
+
+    static CompiledFunction compile(Stmt.Function function)
+    {
+        try
+        {
+            JvmCompiler compiler = new JvmCompiler(function.name.lexeme);
+            byte[] bytes = compiler.generate(function);
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Object[].class));
+            return instantiate(constructor, compiler.constants.toArray());
+        }
+        catch (Unsupported unsupported)
+        {
+            return null;
+        }
+        catch (LinkageError | IllegalAccessException | NoSuchMethodException error)
+        {
+            // The JVM refused the generated class, which is a bug in the
+            // generator: say so, and leave the function to the tree walker.
+            System.err.println("[jit] Can't compile " + function.name.lexeme + ": " + error);
+            return null;
+        }
+    }
+
+    private static CompiledFunction instantiate(MethodHandle constructor, Object[] constants)
+    {
+        try
+        {
+            return (CompiledFunction)constructor.invoke(constants);
+        }
+        catch (RuntimeException | Error error)
+        {
+            throw error;
+        }
+        catch (Throwable error)
+        {
+            // The constructor only stores its argument.
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private byte[] generate(Stmt.Function function)
+    {
+        classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "constants", "[" + OBJECT);
+
+        ClassFile.Code init = new ClassFile.Code();
+        init.op(ALOAD_0, 1);
+        init.op(INVOKESPECIAL, -1);
+        init.u2(classFile.methodRef("java/lang/Object", "<init>", "()V"));
+        init.op(ALOAD_0, 1);
+        init.op(ALOAD_1, 1);
+        init.op(PUTFIELD, -2);
+        init.u2(classFile.fieldRef(className, "constants", "[" + OBJECT));
+        init.op(RETURN, 0);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([" + OBJECT + ")V", init.maxStack, 2, init.toByteArray());
+
+        enterFrame(function.frameSize);
+        for (int i = 0; i < function.parameters.size(); ++i)
+        {
+            code.op(ALOAD_2, 1);
+            pushInt(i);
+            code.op(AALOAD, -1);
+            store(FRAME + i);
+        }
+        compile(function.body);
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+
+        byte[] body = code.toByteArray();
+        if (body.length > 0xffff) throw new Unsupported();
+
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "call", CALL_DESCRIPTOR, code.maxStack, maxLocals, body);
+        return classFile.toByteArray();
+    }
+
+    private void compile(List<Stmt> statements)
+    {
+        for (Stmt statement : statements)
+        {
+            statement.accept(this);
+        }
+    }
+
+    private void compile(Expr expr)
+    {
+        expr.accept(this);
+    }
+
+    // Allocates a JVM local for every slot of the Lox frame, starting out as
+    // nil. Slots that are filled in by the caller (parameters) are
+    // overwritten afterwards.
+    private void enterFrame(int frameSize)
+    {
+        maxLocals = FRAME + frameSize;
+
+        for (int i = 0; i < frameSize; ++i)
+        {
+            code.op(ACONST_NULL, 1);
+            store(FRAME + i);
+        }
+    }
+
+    // Maps a resolved variable to a JVM local, -1 for globals. Captured
+    // locals and upvalues live in Cells, which compiled code doesn't handle.
+    private int local(Access access, int index)
+    {
+        if (access == Access.GLOBAL) return -1;
+        if (access != Access.LOCAL) throw new Unsupported();
+        return FRAME + index;
+    }
+
+    private void load(int local)
+    {
+        if (local > 0xff)
+        {
+            code.op(WIDE, 0);
+            code.op(ALOAD, 1);
+            code.u2(local);
+            return;
+        }
+        code.op(ALOAD, 1);
+        code.u1(local);
+    }
+
+    private void store(int local)
+    {
+        if (local > 0xff)
+        {
+            code.op(WIDE, 0);
+            code.op(ASTORE, -1);
+            code.u2(local);
+            return;
+        }
+        code.op(ASTORE, -1);
+        code.u1(local);
+    }
+
+    private void pushInt(int value)
+    {
+        if (value <= 5)
+        {
+            code.op(ICONST_0 + value, 1);
+        }
+        else if (value <= Byte.MAX_VALUE)
+        {
+            code.op(BIPUSH, 1);
+            code.u1(value);
+        }
+        else if (value <= Short.MAX_VALUE)
+        {
+            code.op(SIPUSH, 1);
+            code.u2(value);
+        }
+        else
+        {
+            code.op(LDC_W, 1);
+            code.u2(classFile.integer(value));
+        }
+    }
+
+    private void pushConstant(Object value)
+    {
+        Integer index = constantIndex.get(value);
+        if (index == null)
+        {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+
+        code.op(ALOAD_0, 1);
+        code.op(GETFIELD, 0);
+        code.u2(classFile.fieldRef(className, "constants", "[" + OBJECT));
+        pushInt(index);
+        code.op(AALOAD, -1);
+    }
+
+    private void pushToken(Token token)
+    {
+        pushConstant(token, "Token");
+    }
+
+    private void pushConstant(Object value, String type)
+    {
+        pushConstant(value);
+        code.op(CHECKCAST, 0);
+        code.u2(classFile.classRef(PACKAGE + type));
+    }
+
+    private void invokeHelper(String name, String descriptor, int arguments, boolean returns)
+    {
+        code.op(INVOKESTATIC, -arguments + (returns ? 1 : 0));
+        code.u2(classFile.methodRef(SELF, name, descriptor));
+    }
+
+    // Pops the value on the stack and branches on its truthiness.
+    private int branch(int opcode)
+    {
+        invokeHelper("truthy", "(" + OBJECT + ")Z", 1, true);
+        return jump(opcode, -1);
+    }
+
+    private int jump(int opcode, int stackDelta)
+    {
+        int at = code.position();
+        code.op(opcode, stackDelta);
+        code.u2(0);
+        return at;
+    }
+
+    private void patch(int jump)
+    {
+        patch(jump, code.position());
+    }
+
+    private void patch(int jump, int target)
+    {
+        int offset = target - jump;
+        if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) throw new Unsupported();
+        code.patch(jump + 1, offset);
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt)
+    {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt)
+    {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt)
+    {
+        if (stmt.tailCall) compileCall((Expr.Call)stmt.value, "tailCall");
+        else if (stmt.value != null) compile(stmt.value);
+        else code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt)
+    {
+        compile(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt)
+    {
+        compile(stmt.condition);
+        int elseJump = branch(IFEQ);
+        stmt.thenBranch.accept(this);
+
+        if (stmt.elseBranch == null)
+        {
+            patch(elseJump);
+            return null;
+        }
+
+        int endJump = jump(GOTO, 0);
+        patch(elseJump);
+        stmt.elseBranch.accept(this);
+        patch(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt)
+    {
+        int start = code.position();
+        compile(stmt.condition);
+        int exitJump = branch(IFEQ);
+        stmt.body.accept(this);
+        patch(jump(GOTO, 0), start);
+        patch(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt)
+    {
+        if (stmt.initializer != null) compile(stmt.initializer);
+        else code.op(ACONST_NULL, 1);
+        if (stmt.captured) throw new Unsupported();
+        store(local(Access.LOCAL, stmt.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt)
+    {
+        compile(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt)
+    {
+        compile(stmt.expression);
+        invokeHelper("print", "(" + OBJECT + ")V", 1, false);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr)
+    {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr)
+    {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr)
+    {
+        compile(expr.object);
+        pushToken(expr.name);
+        invokeHelper("checkInstance", "(" + OBJECT + TOKEN + ")" + OBJECT, 2, true);
+        compile(expr.value);
+        pushToken(expr.name);
+        invokeHelper("set", "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT, 3, true);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr)
+    {
+        compile(expr.object);
+        pushToken(expr.name);
+        invokeHelper("get", "(" + OBJECT + TOKEN + ")" + OBJECT, 2, true);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr)
+    {
+        int local = local(expr.access, expr.index);
+        if (local == -1)
+        {
+            code.op(ALOAD_1, 1);
+            pushConstant(expr, "Expr$Assign");
+            compile(expr.value);
+            invokeHelper("assignGlobal", "(" + INTERPRETER + "L" + PACKAGE + "Expr$Assign;" + OBJECT + ")" + OBJECT, 3, true);
+            return null;
+        }
+
+        compile(expr.value);
+        code.op(DUP, 1);
+        store(local);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr)
+    {
+        int local = local(expr.access, expr.index);
+        if (local == -1)
+        {
+            code.op(ALOAD_1, 1);
+            pushConstant(expr, "Expr$Variable");
+            invokeHelper("getGlobal", "(" + INTERPRETER + "L" + PACKAGE + "Expr$Variable;)" + OBJECT, 2, true);
+            return null;
+        }
+
+        load(local);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr)
+    {
+        compile(expr.left);
+        code.op(DUP, 1);
+        int endJump = branch(expr.operator.type == TokenType.OR ? IFNE : IFEQ);
+        code.op(POP, -1);
+        compile(expr.right);
+        patch(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr)
+    {
+        String helper;
+        switch (expr.operator.type)
+        {
+            case MINUS:         helper = "subtract"; break;
+            case PLUS:          helper = "add"; break;
+            case STAR:          helper = "multiply"; break;
+            case SLASH:         helper = "divide"; break;
+            case GREATER:       helper = "greater"; break;
+            case GREATER_EQUAL: helper = "greaterEqual"; break;
+            case LESS:          helper = "less"; break;
+            case LESS_EQUAL:    helper = "lessEqual"; break;
+            case BANG_EQUAL:    helper = "notEqual"; break;
+            case EQUAL_EQUAL:   helper = "equal"; break;
+            default:            throw new Unsupported();
+        }
+
+        compile(expr.left);
+        compile(expr.right);
+        pushToken(expr.operator);
+        invokeHelper(helper, "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT, 3, true);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr)
+    {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr)
+    {
+        if (expr.value == null)
+        {
+            code.op(ACONST_NULL, 1);
+        }
+        else if (expr.value instanceof Boolean)
+        {
+            code.op(GETSTATIC, 1);
+            code.u2(classFile.fieldRef("java/lang/Boolean", (Boolean)expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"));
+        }
+        else
+        {
+            pushConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr)
+    {
+        compile(expr.right);
+        switch (expr.operator.type)
+        {
+            case MINUS:
+                pushToken(expr.operator);
+                invokeHelper("negate", "(" + OBJECT + TOKEN + ")" + OBJECT, 2, true);
+                break;
+            case BANG:
+                invokeHelper("not", "(" + OBJECT + ")" + OBJECT, 1, true);
+                break;
+            default:
+                throw new Unsupported();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr)
+    {
+        compileCall(expr, "call");
+        return null;
+    }
+
+    private void compileCall(Expr.Call expr, String helper)
+    {
+        compile(expr.callee);
+        pushToken(expr.paren);
+        invokeHelper("checkCallable", "(" + OBJECT + TOKEN + ")" + OBJECT, 2, true);
+
+        pushInt(expr.arguments.size());
+        code.op(ANEWARRAY, 0);
+        code.u2(classFile.classRef("java/lang/Object"));
+        for (int i = 0; i < expr.arguments.size(); ++i)
+        {
+            code.op(DUP, 1);
+            pushInt(i);
+            compile(expr.arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+
+        pushToken(expr.paren);
+        code.op(ALOAD_1, 1);
+        invokeHelper(helper, "(" + OBJECT + "[" + OBJECT + TOKEN + INTERPRETER + ")" + OBJECT, 4, true);
+    }
+
+    // Runtime helpers called from the generated code.
+
+    static boolean truthy(Object value)
+    {
+        return Interpreter.isTruthy(value);
+    }
+
+    static void print(Object value)
+    {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static Object getGlobal(Interpreter interpreter, Expr.Variable site)
+    {
+        return interpreter.lookUpGlobal(site);
+    }
+
+    static Object assignGlobal(Interpreter interpreter, Expr.Assign site, Object value)
+    {
+        interpreter.assignGlobal(site, value);
+        return value;
+    }
+
+    static Object checkInstance(Object object, Token name)
+    {
+        if (!(object instanceof LoxInstance))
+        {
+            throw new RuntimeError(name, "Only instance have fields.");
+        }
+        return object;
+    }
+
+    static Object set(Object object, Object value, Token name)
+    {
+        ((LoxInstance)object).set(name, value);
+        return value;
+    }
+
+    static Object get(Object object, Token name)
+    {
+        if (object instanceof LoxInstance)
+        {
+            return ((LoxInstance)object).get(name);
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static Object checkCallable(Object callee, Token paren)
+    {
+        if (!(callee instanceof LoxCallable))
+        {
+            throw new RuntimeError(paren, "Object not callable: can only call functions and classes");
+        }
+        return callee;
+    }
+
+    static Object call(Object callee, Object[] arguments, Token paren, Interpreter interpreter)
+    {
+        LoxCallable function = (LoxCallable)callee;
+
+        if (arguments.length != function.arity())
+        {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " number of arguments but got " + arguments.length + ".");
+        }
+
+        // See Interpreter.visitCallExpr.
+        try
+        {
+            return function.call(interpreter, arguments);
+        }
+        catch (StackOverflowError overflow)
+        {
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+    }
+
+    // Like call, but Lox functions are handed back as a tail call for the
+    // trampoline of the LoxFunction running this code.
+    static Object tailCall(Object callee, Object[] arguments, Token paren, Interpreter interpreter)
+    {
+        if (callee instanceof LoxFunction)
+        {
+            LoxFunction function = (LoxFunction)callee;
+            if (arguments.length != function.arity())
+            {
+                throw new RuntimeError(paren, "Expected " + function.arity() + " number of arguments but got " + arguments.length + ".");
+            }
+            return function.tailCall(arguments);
+        }
+        return call(callee, arguments, paren, interpreter);
+    }
+
+    static Object negate(Object operand, Token operator)
+    {
+        Interpreter.checkNumberOperand(operator, operand);
+        return -(double)operand;
+    }
+
+    static Object not(Object operand)
+    {
+        return !Interpreter.isTruthy(operand);
+    }
+
+    static Object add(Object left, Object right, Token operator)
+    {
+        if (left instanceof Double && right instanceof Double)
+        {
+            return (double)left + (double)right;
+        }
+        if (left instanceof String && right instanceof String)
+        {
+            return (String)left + (String)right;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+    }
+
+    static Object subtract(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left / (double)right;
+    }
+
+    static Object greater(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static Object less(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static Object equal(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right, Token operator)
+    {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return !Interpreter.isEqual(left, right);
+    }
+}
@@ -0,0 +1,63 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.Interpreter.*;
+
+// Self-specializing implementation of an Expr.Logical site, see
+// BinaryOperation. Sites whose left operand is always a Boolean skip the
+// general truthiness check.
+abstract class LogicalOperation
+{
+    // Returns true when the left operand is the result of the expression.
+    abstract boolean shortCircuits(Expr.Logical site, Object left);
+
+    static final LogicalOperation UNINITIALIZED = new LogicalOperation() {
+        @Override
+        boolean shortCircuits(Expr.Logical site, Object left)
+        {
+            boolean isOr = site.operator.type == TokenType.OR;
+            if (left instanceof Boolean) site.operation = isOr ? new BooleanOr() : new BooleanAnd();
+            else site.operation = isOr ? GENERIC_OR : GENERIC_AND;
+            return site.operation.shortCircuits(site, left);
+        }
+    };
+
+    static final LogicalOperation GENERIC_OR = new LogicalOperation() {
+        @Override
+        boolean shortCircuits(Expr.Logical site, Object left)
+        {
+            return isTruthy(left);
+        }
+    };
+
+    static final LogicalOperation GENERIC_AND = new LogicalOperation() {
+        @Override
+        boolean shortCircuits(Expr.Logical site, Object left)
+        {
+            return !isTruthy(left);
+        }
+    };
+
+    private static final class BooleanOr extends LogicalOperation
+    {
+        @Override
+        boolean shortCircuits(Expr.Logical site, Object left)
+        {
+            if (left instanceof Boolean) return (boolean)left;
+
+            site.operation = GENERIC_OR;
+            return isTruthy(left);
+        }
+    }
+
+    private static final class BooleanAnd extends LogicalOperation
+    {
+        @Override
+        boolean shortCircuits(Expr.Logical site, Object left)
+        {
+            if (left instanceof Boolean) return !(boolean)left;
+
+            site.operation = GENERIC_AND;
+            return !isTruthy(left);
+        }
+    }
+}
@@ -7,28 +7,107 @@ import static com.craftinginterpreters.lox.RuntimeError.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox
 {
     private static final Interpreter interpreter = new Interpreter();
+    private static final ClosureCompiler closureCompiler = new ClosureCompiler();
+    private static final VM vm = new VM();
+    private static boolean useClosureCompiler = false;
+    private static boolean useVm = false;
+    private static boolean useCache = false;
+    private static boolean streaming = false;
+    private static boolean pipelined = false;
+    private static boolean wholeScript = false;
+    private static ScriptCache cache = null;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
 
     public static void main(String[] args) throws IOException
     {
-        if (args.length > 1)
+        String script = null;
+
+        for (String arg : args)
+        {
+            if (arg.equals("--closures"))
+            {
+                useClosureCompiler = true;
+            }
+            else if (arg.equals("--vm"))
+            {
+                useVm = true;
+            }
+            else if (arg.equals("--no-jit"))
+            {
+                JvmCompiler.enabled = false;
+            }
+            else if (arg.equals("--lazy"))
+            {
+                Parser.lazy = true;
+            }
+            else if (arg.equals("--cache"))
+            {
+                useCache = true;
+            }
+            else if (arg.equals("--stream"))
+            {
+                streaming = true;
+            }
+            else if (arg.equals("--pipeline"))
+            {
+                streaming = true;
+                pipelined = true;
+            }
+            else if (script == null && !arg.startsWith("-"))
+            {
+                script = arg;
+            }
+            else
+            {
+                System.out.println("Usage: jlox [--closures | --vm [--cache]] [--no-jit] [--lazy] [--stream | --pipeline] [script]");
+                System.exit(64);
+            }
+        }
+
+        // A streamed script is never whole: there is nothing to cache,
+        // and the tokens of deferred bodies would be dropped.
+        if (streaming)
+        {
+            useCache = false;
+            Parser.lazy = false;
+        }
+
+        // Bytecode is the only compiled form there is to cache, so the
+        // other engines run uncached rather than on the VM.
+        if (!useVm) useCache = false;
+
+        // The VM compiles the whole script to bytecode before running it.
+        if (useVm) Parser.lazy = false;
+
+        // The pipeline's scanner thread needs the whole script mapped, so
+        // standard input is streamed on one thread. So is everything on a
+        // single processor, where the stages could only take turns.
+        if (pipelined && script != null && Runtime.getRuntime().availableProcessors() > 1)
         {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
+            runPipeline(script);
         }
-        else if (args.length == 1)
+        else if (streaming)
         {
-            runFile(args[0]);
+            runStream(script == null ? Channels.newChannel(System.in) : Files.newByteChannel(Paths.get(script)));
+        }
+        else if (script != null)
+        {
+            runFile(script);
         }
         else
         {
@@ -38,7 +117,7 @@ public class Lox
 
     static void runtimeError(RuntimeError error)
     {
-        System.err.println("[line " + error.token.line + "]: " + error.getMessage() );
+        System.err.println("[line " + error.line + "]: " + error.getMessage() );
         hadRuntimeError = true;
     }
 
@@ -68,12 +147,35 @@ public class Lox
     }
 
 
+    // The Scanner reads the UTF-8 source straight from the mapping.
+    private static MappedByteBuffer map(String path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
     private static void runFile(String path) throws IOException
     {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));        
+        MappedByteBuffer source = map(path);
+        wholeScript = true;
 
-        run(new String(bytes, Charset.defaultCharset()));
+        VM.ObjFunction cached = null;
+        if (useCache)
+        {
+            cache = new ScriptCache(Paths.get(path), source);
+            cached = cache.load();
+        }
 
+        if (cached != null)
+        {
+            vm.interpret(cached);
+        }
+        else
+        {
+            run(new Scanner(source));
+        }
 
         if (hadError)
         {
@@ -84,6 +186,51 @@ public class Lox
     }
 
 
+    // Runs each top-level declaration as soon as it is parsed, the way the
+    // prompt runs lines, so only the tokens and tree of one declaration are
+    // held at a time. Declarations after an error are still parsed, for
+    // their errors, but no longer run.
+    private static void runStream(ReadableByteChannel input) throws IOException
+    {
+        try (input)
+        {
+            Parser parser = new Parser(new Scanner(input).tokens());
+
+            while (parser.hasNext() && !hadRuntimeError)
+            {
+                Stmt statement = parser.next();
+                if (hadError) continue;
+
+                List<Stmt> statements = new ArrayList<>();
+                statements.add(statement);
+                run(statements);
+            }
+        }
+
+        if (hadError)
+        {
+            System.exit(65);
+        }
+
+        if (hadRuntimeError) System.exit(70);
+    }
+
+
+    private static void runPipeline(String path) throws IOException
+    {
+        new Pipeline(map(path)).run();
+
+        // Checked first: the front end may have gone on to syntax errors
+        // past the declaration that failed.
+        if (hadRuntimeError) System.exit(70);
+
+        if (hadError)
+        {
+            System.exit(65);
+        }
+    }
+
+
     private static void runPrompt() throws IOException
     {
 
@@ -93,16 +240,15 @@ public class Lox
         while (true)
         { 
             System.out.print("> ");
-            run(reader.readLine());
+            run(new Scanner(reader.readLine()));
 
             hadError = false;
         }
     }
 
-    private static void run(String source)
+    private static void run(Scanner scanner)
     {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        TokenStream tokens = scanner.scanTokens();
 
         Parser parser = new Parser(tokens);
 
@@ -116,14 +262,63 @@ public class Lox
             return;
         }
 
-        Resolver resolver = new Resolver(interpreter);
+        run(statements);
+    }
+
+    private static void run(List<Stmt> statements)
+    {
+        Runnable program = compile(statements);
+        if (program != null) program.run();
+    }
+
+    // Takes statements through the rest of the front end, returning what
+    // runs them with the selected engine, or null after an error.
+    static Runnable compile(List<Stmt> statements)
+    {
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
         // Semantic error
-        if (hadError) return;
+        if (hadError) return null;
+
+        new Optimizer().optimize(statements);
 
 
-        interpreter.interpret(statements);
+        if (useVm)
+        {
+            try
+            {
+                VM.ObjFunction script = new BytecodeCompiler().compile(statements);
+
+                // Compile error
+                if (hadError) return null;
+
+                if (cache != null) cache.store(script);
+
+                return () -> vm.interpret(script);
+            }
+            catch (BytecodeCompiler.TooLarge error)
+            {
+                // A whole script can go to the tree walker instead, uncached.
+                // Lines and declarations can't: they share the VM's globals.
+                if (!wholeScript)
+                {
+                    error(error.line, error.getMessage());
+                    return null;
+                }
+            }
+        }
+
+        if (useClosureCompiler)
+        {
+            int frameSize = resolver.scriptFrameSize();
+            return () -> closureCompiler.interpret(statements, frameSize);
+        }
+        else
+        {
+            int frameSize = resolver.scriptFrameSize();
+            return () -> interpreter.interpret(statements, frameSize);
+        }
 
     }   
 
@@ -1,10 +1,39 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
+// Calls with up to four arguments go through the entry point for their
+// arity, so callers never allocate a list or array to pass them. Callables
+// that don't care only implement the Object[] form, which the fixed-arity
+// entry points fall back on.
 interface LoxCallable
 {
-	Object call(Interpreter interpreter, List<Object> arguments);
+	Object[] NO_ARGUMENTS = new Object[0];
+
+	Object call(Interpreter interpreter, Object[] arguments);
+
+	default Object call(Interpreter interpreter)
+	{
+		return call(interpreter, NO_ARGUMENTS);
+	}
+
+	default Object call(Interpreter interpreter, Object a)
+	{
+		return call(interpreter, new Object[] { a });
+	}
+
+	default Object call(Interpreter interpreter, Object a, Object b)
+	{
+		return call(interpreter, new Object[] { a, b });
+	}
+
+	default Object call(Interpreter interpreter, Object a, Object b, Object c)
+	{
+		return call(interpreter, new Object[] { a, b, c });
+	}
+
+	default Object call(Interpreter interpreter, Object a, Object b, Object c, Object d)
+	{
+		return call(interpreter, new Object[] { a, b, c, d });
+	}
 
 	int arity();
-}
\ No newline at end of file
+}
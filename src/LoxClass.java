@@ -2,50 +2,91 @@ package com.craftinginterpreters.lox;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.List;
 
 class LoxClass extends LoxInstance implements LoxCallable {
     final String name;
     final LoxClass superclass;
 
+    // Own and inherited methods flattened when the class is created, so a
+    // lookup never walks the superclass chain.
     private final Map<String, LoxFunction> methods;
+    private final LoxFunction initializer;
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         super();
         this.klass = this;
         
         this.name = name;
-        this.methods = methods;
         this.superclass = superclass;
+
+        Map<String, LoxFunction> table = new HashMap<>();
+        if (superclass != null) {
+            table.putAll(superclass.methods);
+        }
+        table.putAll(methods);
+
+        this.methods = table;
+        this.initializer = table.get("init");
     }
 
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        return methods.get(name);
+    }
 
-        if (superclass != null) {
-            return superclass.findMethod(name);
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        LoxInstance instance = new LoxInstance(this);
+
+        if (initializer != null) {
+            initializer.invoke(interpreter, instance, arguments);
         }
-        return null;
+
+        return instance;
     }
 
+    // The callers checked the arity, so with no initializer there are no
+    // arguments to pass on.
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter) {
         LoxInstance instance = new LoxInstance(this);
 
-        LoxFunction initializer = findMethod("init");
-
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance);
         }
 
         return instance;
     }
 
+    @Override
+    public Object call(Interpreter interpreter, Object a) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.invoke(interpreter, instance, a);
+        return instance;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.invoke(interpreter, instance, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b, Object c) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.invoke(interpreter, instance, a, b, c);
+        return instance;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.invoke(interpreter, instance, a, b, c, d);
+        return instance;
+    }
+
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
             return initializer.arity();
         }
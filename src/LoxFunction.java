@@ -1,51 +1,236 @@
 package com.craftinginterpreters.lox;
 
 import com.craftinginterpreters.lox.LoxCallable;
-import com.craftinginterpreters.lox.Return;
-
-import java.util.List;
 
 class LoxFunction implements LoxCallable
 {
 	private final Stmt.Function declaration;
-	private final Environment closure;
+	private final Cell[] upvalues;
     private final boolean isInitializer;
 
-	LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    // Instance a method was bound to, null for functions and unbound methods.
+    private final LoxInstance receiver;
+
+    // Body produced by the ClosureCompiler, null when run by the Interpreter.
+    private final ClosureCompiler.StmtNode body;
+
+    // Tree-walked calls are counted and hot functions compiled to JVM code.
+    private int calls = 0;
+    private JvmCompiler.CompiledFunction compiled = null;
+
+	LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer) {
+		this(declaration, upvalues, isInitializer, null, null);
+	}
+
+	LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer, ClosureCompiler.StmtNode body) {
+		this(declaration, upvalues, isInitializer, body, null);
+	}
+
+	private LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer, ClosureCompiler.StmtNode body, LoxInstance receiver) {
 		this.declaration = declaration;
-		this.closure = closure;
+		this.upvalues = upvalues;
         this.isInitializer = isInitializer;
+        this.body = body;
+        this.receiver = receiver;
 	}
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, isInitializer, body, instance);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments)
+    {
+        return complete(interpreter, run(interpreter, receiver, arguments));
+    }
+
+    // The fixed-arity entry points store their arguments straight into the
+    // new frame. Compiled code takes them as an array.
+    @Override
+    public Object call(Interpreter interpreter)
+    {
+        return invoke(interpreter, receiver);
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments)
+    public Object call(Interpreter interpreter, Object a)
     {
-    	Environment environment = new Environment(this.closure);
+        return invoke(interpreter, receiver, a);
+    }
 
-    	for (int i = 0; i < arguments.size(); ++i)
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b)
+    {
+        return invoke(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b, Object c)
+    {
+        return invoke(interpreter, receiver, a, b, c);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b, Object c, Object d)
+    {
+        return invoke(interpreter, receiver, a, b, c, d);
+    }
+
+    // Calls this method on receiver without materializing the bound method.
+    Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments)
+    {
+        return complete(interpreter, run(interpreter, receiver, arguments));
+    }
+
+    Object invoke(Interpreter interpreter, LoxInstance receiver)
+    {
+        if (compiledCode() != null) return invoke(interpreter, receiver, NO_ARGUMENTS);
+
+        return complete(interpreter, run(interpreter, receiver, frame(receiver)));
+    }
+
+    Object invoke(Interpreter interpreter, LoxInstance receiver, Object a)
+    {
+        if (compiledCode() != null) return invoke(interpreter, receiver, new Object[] { a });
+
+        Environment environment = frame(receiver);
+        environment.define(0, a);
+        return complete(interpreter, run(interpreter, receiver, environment));
+    }
+
+    Object invoke(Interpreter interpreter, LoxInstance receiver, Object a, Object b)
+    {
+        if (compiledCode() != null) return invoke(interpreter, receiver, new Object[] { a, b });
+
+        Environment environment = frame(receiver);
+        environment.define(0, a);
+        environment.define(1, b);
+        return complete(interpreter, run(interpreter, receiver, environment));
+    }
+
+    Object invoke(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c)
+    {
+        if (compiledCode() != null) return invoke(interpreter, receiver, new Object[] { a, b, c });
+
+        Environment environment = frame(receiver);
+        environment.define(0, a);
+        environment.define(1, b);
+        environment.define(2, c);
+        return complete(interpreter, run(interpreter, receiver, environment));
+    }
+
+    Object invoke(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c, Object d)
+    {
+        if (compiledCode() != null) return invoke(interpreter, receiver, new Object[] { a, b, c, d });
+
+        Environment environment = frame(receiver);
+        environment.define(0, a);
+        environment.define(1, b);
+        environment.define(2, c);
+        environment.define(3, d);
+        return complete(interpreter, run(interpreter, receiver, environment));
+    }
+
+    // A call in tail position, returned as the completion of the caller's
+    // body and run by the trampoline in complete once that frame is gone.
+    static final class TailCall
+    {
+        final LoxFunction function;
+        final LoxInstance receiver;
+        final Object[] arguments;
+
+        TailCall(LoxFunction function, LoxInstance receiver, Object[] arguments)
+        {
+            this.function = function;
+            this.receiver = receiver;
+            this.arguments = arguments;
+        }
+    }
+
+    TailCall tailCall(Object[] arguments)
+    {
+        return new TailCall(this, receiver, arguments);
+    }
+
+    TailCall tailInvoke(LoxInstance receiver, Object[] arguments)
+    {
+        return new TailCall(this, receiver, arguments);
+    }
+
+    private static Object complete(Interpreter interpreter, Object result)
+    {
+        while (result instanceof TailCall)
+        {
+            TailCall call = (TailCall)result;
+            result = call.function.run(interpreter, call.receiver, call.arguments);
+        }
+        return result;
+    }
+
+    private JvmCompiler.CompiledFunction compiledCode()
+    {
+        if (calls < JvmCompiler.THRESHOLD && ++calls == JvmCompiler.THRESHOLD
+                && JvmCompiler.enabled && body == null && !isInitializer)
+        {
+            compiled = JvmCompiler.compile(declaration);
+        }
+        return compiled;
+    }
+
+    // Runs the body once, which may end in a TailCall still to be made.
+    private Object run(Interpreter interpreter, LoxInstance receiver, Object[] arguments)
+    {
+        JvmCompiler.CompiledFunction code = compiledCode();
+        if (code != null) return code.call(interpreter, arguments);
+
+    	Environment environment = frame(receiver);
+
+    	for (int i = 0; i < arguments.length; ++i)
+    	{
+    		environment.define(i, arguments[i]);
+    	}
+    	return run(interpreter, receiver, environment);
+    }
+
+    // A frame for a call, with the receiver of a method in the slot after
+    // the arguments.
+    private Environment frame(LoxInstance receiver)
+    {
+    	if (declaration.deferred != null)
+    	{
+    		declaration.deferred.complete(declaration);
+    	}
+
+    	Environment environment = new Environment(declaration.frameSize, upvalues);
+
+    	if (receiver != null)
+    	{
+    		environment.define(declaration.parameters.size(), receiver);
+    	}
+    	return environment;
+    }
+
+    // Runs the body in a frame already holding the arguments.
+    private Object run(Interpreter interpreter, LoxInstance receiver, Environment environment)
+    {
+    	for (int slot : declaration.capturedParameters)
     	{
-    		environment.define(declaration.parameters.get(i).lexeme, arguments.get(i));
+    		environment.define(slot, new Cell(environment.get(slot)));
     	}
 
-    	try
+    	Object completion;
+    	if (body != null)
     	{
-	    	interpreter.executeBlock(declaration.body, environment);
+    		completion = body.execute(environment);
     	}
-    	catch (Return returnValue)
+    	else
     	{
-            if (isInitializer) return closure.getAt(0, "this");
-    		return returnValue.value;
+	    	completion = interpreter.executeBlock(declaration.body, environment);
     	}
 
-        if (isInitializer) return closure.getAt(0, "this");
+    	if (isInitializer) return receiver;
 
-    	return null;
+    	return completion == Interpreter.NORMAL ? null : completion;
     }
 
     @Override
@@ -1,11 +1,13 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance
 {
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private Shape shape = Shape.EMPTY;
+    private Object[] values = NO_VALUES;
     protected LoxClass klass;
 
     LoxInstance(LoxClass klass) {
@@ -17,10 +19,42 @@ class LoxInstance
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int slot = shape.slotOf(name.lexeme);
+        if (slot != -1) {
+            return values[slot];
+        }
+
+        return getMethod(name);
+    }
+
+    Object get(Token name, PropertyCache cache) {
+        int slot = slotOf(name, cache);
+        if (slot != -1) {
+            return values[slot];
         }
 
+        return getMethod(name);
+    }
+
+    // The method a call site can invoke directly on this instance, or null
+    // when name is a field or not a method at all.
+    LoxFunction method(Token name, PropertyCache cache) {
+        if (slotOf(name, cache) != -1) return null;
+        return klass.findMethod(name.lexeme);
+    }
+
+    private int slotOf(Token name, PropertyCache cache) {
+        int entry = cache.find(shape);
+        if (entry != -1) {
+            return cache.slots[entry];
+        }
+
+        int slot = shape.slotOf(name.lexeme);
+        cache.add(shape, slot, shape);
+        return slot;
+    }
+
+    private Object getMethod(Token name) {
         LoxFunction method = klass.findMethod(name.lexeme);
         if (method != null) {
             return method.bind(this);
@@ -30,12 +64,35 @@ class LoxInstance
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        Shape successor = shape.withField(name.lexeme);
+        store(successor, successor.slotOf(name.lexeme), value);
+    }
 
+    void set(Token name, Object value, PropertyCache cache) {
+        int entry = cache.find(shape);
+        if (entry == -1) {
+            Shape successor = shape.withField(name.lexeme);
+            int slot = successor.slotOf(name.lexeme);
+            entry = cache.add(shape, slot, successor);
+            if (entry == -1) {
+                store(successor, slot, value);
+                return;
+            }
+        }
+
+        store(cache.successors[entry], cache.slots[entry], value);
+    }
+
+    private void store(Shape successor, int slot, Object value) {
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, successor.size());
+        }
+        shape = successor;
+        values[slot] = value;
     }
 
     @Override
     public String toString() {
         return klass.name + " instance";
     }
-}
\ No newline at end of file
+}
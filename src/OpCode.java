@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+// Instruction set of the VM. Operands follow the opcode in the chunk:
+// u8 operands are one byte, u16 operands (constant indices, slots) are two
+// bytes and u32 operands (jump offsets) four, high byte first.
+final class OpCode
+{
+    static final byte CONSTANT      = 0;    // u16 constant
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+
+    static final byte GET_LOCAL     = 5;    // u16 slot
+    static final byte SET_LOCAL     = 6;    // u16 slot
+    static final byte GET_GLOBAL    = 7;    // u16 name
+    static final byte DEFINE_GLOBAL = 8;    // u16 name
+    static final byte SET_GLOBAL    = 9;    // u16 name
+    static final byte GET_UPVALUE   = 10;   // u16 index
+    static final byte SET_UPVALUE   = 11;   // u16 index
+    static final byte GET_PROPERTY  = 12;   // u16 name
+    static final byte SET_PROPERTY  = 13;   // u16 name
+    static final byte GET_SUPER     = 14;   // u16 name
+
+    static final byte EQUAL         = 15;
+    static final byte GREATER       = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS          = 18;
+    static final byte LESS_EQUAL    = 19;
+    static final byte ADD           = 20;
+    static final byte SUBTRACT      = 21;
+    static final byte MULTIPLY      = 22;
+    static final byte DIVIDE        = 23;
+    static final byte NOT           = 24;
+    static final byte NEGATE        = 25;
+
+    static final byte PRINT         = 26;
+    static final byte JUMP          = 27;   // u32 offset
+    static final byte JUMP_IF_FALSE = 28;   // u32 offset
+    static final byte LOOP          = 29;   // u32 offset
+    static final byte CALL          = 30;   // u8 argument count
+    static final byte INVOKE        = 31;   // u16 name, u8 argument count
+    static final byte CLOSURE       = 32;   // u16 function, then (u8 isLocal, u16 index) per upvalue
+    static final byte CLOSE_UPVALUE = 33;
+    static final byte RETURN        = 34;
+
+    static final byte CLASS         = 35;   // u16 name
+    static final byte INHERIT       = 36;
+    static final byte METHOD        = 37;   // u16 name
+    static final byte STATIC_FIELD  = 38;   // u16 name
+
+    // CALL and INVOKE in tail position, which replace the caller's frame
+    // when they call a closure.
+    static final byte TAIL_CALL     = 39;   // u8 argument count
+    static final byte TAIL_INVOKE   = 40;   // u16 name, u8 argument count
+
+    private OpCode() {}
+}
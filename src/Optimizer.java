@@ -0,0 +1,304 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.Interpreter.isTruthy;
+
+// Rewrites the resolved syntax tree before it runs: folds constant
+// expressions, drops groupings, prunes branches and loops whose condition is
+// a constant and replaces reads of locals that are initialized with a literal
+// and never reassigned by that literal. An expression is only folded when
+// evaluating it cannot fail, so runtime errors are still reported at runtime.
+//
+// Statement lists are rewritten in place; a visit returning null means the
+// statement has no effect and can be dropped.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    private final Map<Stmt.Var, Object> constants = new HashMap<>();
+
+    void optimize(List<Stmt> statements) {
+        for (int i = 0; i < statements.size(); ++i) {
+            Stmt statement = statements.get(i);
+            if (statement == null) continue;
+
+            Stmt optimized = optimize(statement);
+            if (optimized == null) {
+                statements.remove(i--);
+            }
+            else {
+                statements.set(i, optimized);
+            }
+        }
+    }
+
+    private Stmt optimize(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Single statement positions such as loop bodies can't be left empty.
+    private Stmt optimizeBranch(Stmt statement) {
+        Stmt optimized = optimize(statement);
+        if (optimized != null) return optimized;
+
+        return new Stmt.Block(new ArrayList<>());
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            optimize(method.body);
+        }
+
+        for (int i = 0; i < stmt.fields.size(); ++i) {
+            Stmt field = stmt.fields.get(i);
+            if (field instanceof Stmt.Function) {
+                optimize(((Stmt.Function)field).body);
+            }
+            else if (field instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var)field;
+                if (var.initializer != null) {
+                    stmt.fields.set(i, copy(var, optimize(var.initializer)));
+                }
+            }
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        Stmt.Return optimized = new Stmt.Return(stmt.keyword, value);
+        optimized.tailCall = stmt.tailCall;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        optimize(stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        optimize(stmt.statements);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        if (condition instanceof Expr.Literal) {
+            if (isTruthy(((Expr.Literal)condition).value)) return optimize(stmt.thenBranch);
+            if (stmt.elseBranch != null) return optimize(stmt.elseBranch);
+            return null;
+        }
+
+        Stmt thenBranch = optimizeBranch(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        if (condition instanceof Expr.Literal && !isTruthy(((Expr.Literal)condition).value)) return null;
+
+        return new Stmt.While(condition, optimizeBranch(stmt.body));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Stmt.Var optimized = stmt;
+        if (stmt.initializer != null) {
+            optimized = copy(stmt, optimize(stmt.initializer));
+        }
+
+        // Locals only: globals can be redefined by later REPL lines.
+        if (stmt.slot != -1 && !stmt.reassigned) {
+            if (optimized.initializer == null) {
+                constants.put(stmt, null);
+            }
+            else if (optimized.initializer instanceof Expr.Literal) {
+                constants.put(stmt, ((Expr.Literal)optimized.initializer).value);
+            }
+        }
+        return optimized;
+    }
+
+    private Stmt.Var copy(Stmt.Var var, Expr initializer) {
+        if (initializer == var.initializer) return var;
+
+        Stmt.Var optimized = new Stmt.Var(var.token, initializer);
+        optimized.slot = var.slot;
+        optimized.captured = var.captured;
+        optimized.reassigned = var.reassigned;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+
+        if (expression instanceof Expr.Literal) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+
+        if (value == expr.value) return expr;
+
+        Expr.Assign optimized = new Expr.Assign(expr.name, value);
+        optimized.access = expr.access;
+        optimized.index = expr.index;
+        optimized.global = expr.global;
+        return optimized;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (expr.declaration != null && constants.containsKey(expr.declaration)) {
+            return new Expr.Literal(constants.get(expr.declaration));
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+
+        if (left instanceof Expr.Literal) {
+            boolean truthy = isTruthy(((Expr.Literal)left).value);
+            boolean isOr = expr.operator.type == TokenType.OR;
+            if (truthy == isOr) return left;
+            return optimize(expr.right);
+        }
+
+        Expr right = optimize(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object a = ((Expr.Literal)left).value;
+            Object b = ((Expr.Literal)right).value;
+
+            if (a instanceof Double && b instanceof Double) {
+                Object folded = fold(expr.operator.type, (double)a, (double)b);
+                if (folded != null) return new Expr.Literal(folded);
+            }
+            if (a instanceof String && b instanceof String && expr.operator.type == TokenType.PLUS) {
+                return new Expr.Literal((String)a + (String)b);
+            }
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    private static Object fold(TokenType operator, double a, double b) {
+        switch (operator) {
+            case MINUS:         return a - b;
+            case PLUS:          return a + b;
+            case STAR:          return a * b;
+            case SLASH:         return a / b;
+            case GREATER:       return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS:          return a < b;
+            case LESS_EQUAL:    return a <= b;
+            case BANG_EQUAL:    return !Interpreter.isEqual(a, b);
+            case EQUAL_EQUAL:   return Interpreter.isEqual(a, b);
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!isTruthy(value));
+            if (value instanceof Double) return new Expr.Literal(-(double)value);
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        for (int i = 0; i < expr.arguments.size(); ++i) {
+            expr.arguments.set(i, optimize(expr.arguments.get(i)));
+        }
+
+        if (callee == expr.callee) return expr;
+        return new Expr.Call(callee, expr.paren, expr.arguments);
+    }
+}
@@ -11,12 +11,29 @@ class Parser
 
     private static class ParseError extends RuntimeException {};
 
-    private final List<Token> tokens_;
+    // In lazy mode the bodies of top-level functions are only skipped over
+    // and left to a DeferredBody.
+    static boolean lazy = false;
+
+    // Tokens are only materialized by previous() and peek(), for the ones
+    // that end up in the tree or in an error message.
+    private final TokenStream tokens_;
     private int current_ = 0;
 
-    Parser(List<Token> tokens)
+    // Number of blocks and function bodies the parser is in.
+    private int depth_ = 0;
+
+    Parser(TokenStream tokens)
+    {
+        tokens_ = tokens;
+    }
+
+    // Parser for the body of a function starting at token start, right
+    // after its opening '{'.
+    Parser(TokenStream tokens, int start)
     {
         tokens_ = tokens;
+        current_ = start;
     }
 
     List<Stmt> parse()
@@ -37,27 +54,35 @@ class Parser
         }
     }
 
-    private Expr call()
+    boolean hasNext()
     {
-        Expr expr = primary();
+        return !isAtEnd();
+    }
 
-        while (true)
+    // Parses the next top-level declaration of a streamed script. The
+    // tokens before it are dropped first, all but the last one which
+    // previous() may still look at.
+    Stmt next()
+    {
+        if (current_ > 1)
         {
-            if (match(LEFT_PAREN))
-            {
-                expr = finishCall(expr);
-            }
-            else if (match(DOT))
-            {
-                Token name = consume(IDENTIFIER, "Expect property name after a '.'");
-                expr = new Expr.Get(expr, name);
-            }
-            else
-            {
-                break;
-            }
+            tokens_.discard(current_ - 1);
+            current_ = 1;
+        }
+
+        return declaration();
+    }
+
+    List<Stmt> parseBody()
+    {
+        try
+        {
+            return block();
+        }
+        catch (ParseError error)
+        {
+            return null;
         }
-        return expr;
     }
 
     private Expr finishCall(Expr expr)
@@ -94,7 +119,8 @@ class Parser
 
     private Stmt classDeclaration()
     {
-        Token name = consume(IDENTIFIER, "Expect class name identifier after 'class' keyword.");
+        consume(IDENTIFIER, "Expect class name identifier after 'class' keyword.");
+        Token name = previous();
         Expr.Variable superclass = null;
 
         if (match(LESS)) {
@@ -125,7 +151,8 @@ class Parser
 
     private Stmt funDeclaration(String kind)
     {
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name identifier.");
+        consume(IDENTIFIER, "Expect " + kind + " name identifier.");
+        Token name = previous();
 
         consume(LEFT_PAREN, "Expect opening '(' after " + kind + " declaration.");
 
@@ -138,7 +165,8 @@ class Parser
                     error(peek(), kind + " Cannot have more than 254 parameters.");
                 }
 
-                parameters.add(consume(IDENTIFIER, "Expect identifier in " + kind + " parameters declaration."));
+                consume(IDENTIFIER, "Expect identifier in " + kind + " parameters declaration.");
+                parameters.add(previous());
 
             } while (match(COMMA));
         }
@@ -146,14 +174,40 @@ class Parser
         consume(RIGHT_PAREN, "Expect closing ')' after " + kind + " parameters declaration.");
         consume(LEFT_BRACE, "Expect opening '{' before " + kind + " body.");
 
+        if (lazy && depth_ == 0 && kind.equals("function"))
+        {
+            int start = current_;
+            skipBody();
+
+            Stmt.Function function = new Stmt.Function(name, parameters, new ArrayList<>());
+            function.deferred = new DeferredBody(tokens_, start);
+            return function;
+        }
+
         List<Stmt> body = block();
 
         return new Stmt.Function(name, parameters, body);
     }
 
+    // Skips to the '}' matching the '{' just consumed.
+    private void skipBody()
+    {
+        int depth = 1;
+        while (!isAtEnd())
+        {
+            TokenType type = tokens_.type(current_);
+            advance();
+
+            if (type == LEFT_BRACE) ++depth;
+            else if (type == RIGHT_BRACE && --depth == 0) return;
+        }
+        throw error(peek(), "Expect closing '}' after block.");
+    }
+
     private Stmt varDeclaration()
     {
-        Token name = consume(IDENTIFIER, "Expect variable name");
+        consume(IDENTIFIER, "Expect variable name");
+        Token name = previous();
 
         Expr initializer = null;
         if (match(EQUAL))
@@ -271,12 +325,20 @@ class Parser
     {
         List<Stmt> statements = new ArrayList<>();
 
-        while (!check(RIGHT_BRACE) && !isAtEnd())
+        ++depth_;
+        try
         {
-            statements.add(declaration());
-        }
+            while (!check(RIGHT_BRACE) && !isAtEnd())
+            {
+                statements.add(declaration());
+            }
 
-        consume(RIGHT_BRACE, "Expect closing '}' after block.");
+            consume(RIGHT_BRACE, "Expect closing '}' after block.");
+        }
+        finally
+        {
+            --depth_;
+        }
 
         return statements;
 
@@ -298,171 +360,190 @@ class Parser
         return new Stmt.Expression(expr);
     }
 
-    private Expr expression()
+    // Expressions are parsed by precedence climbing over RULES, indexed by
+    // the ordinal of the token type: the prefix parselet of the first token
+    // parses an operand, and infix parselets extend it as long as the next
+    // token binds at least as tightly as the level being parsed.
+    private enum Precedence
     {
-        Expr expr = assignment();
-
-        return expr;
+        NONE,
+        ASSIGNMENT, // =
+        OR,         // or
+        AND,        // and
+        EQUALITY,   // == !=
+        COMPARISON, // < > <= >=
+        TERM,       // + -
+        FACTOR,     // * /
+        UNARY,      // ! -
+        CALL,       // . ()
+        PRIMARY
     }
 
-    private Expr assignment()
+    private interface PrefixParselet
     {
-        Expr expr = or();
-
-        if (match(EQUAL))
-        {
-            Token equals = previous();
-            Expr value = assignment();
-
-            if (expr instanceof Expr.Variable)
-            {
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
-            }
-            else if (expr instanceof Expr.Get)
-            {
-                Expr.Get get = (Expr.Get)expr;
-                return new Expr.Set(get.object, get.name, value);
-            }
-            error(equals, "Invalid assignment target.");
-        }
-
-        return expr;
-
+        Expr parse(Parser parser);
     }
 
-    private Expr or()
+    private interface InfixParselet
     {
-        Expr left = and();
-
-        while (match(OR))
-        {
-            Token operator = previous();
-            Expr right = and();
-            left = new Expr.Logical(left, operator, right);
-        }
-        return left;
+        Expr parse(Parser parser, Expr left);
     }
 
-    private Expr and()
+    private static final class Rule
     {
-        Expr left = equality();
+        final PrefixParselet prefix;
+        final InfixParselet infix;
+        final int precedence;
 
-        while (match(AND))
+        Rule(PrefixParselet prefix, InfixParselet infix, Precedence precedence)
         {
-            Token operator = previous();
-            Expr right = equality();
-            left = new Expr.Logical(left, operator, right);
+            this.prefix = prefix;
+            this.infix = infix;
+            this.precedence = precedence.ordinal();
         }
-        return left;
     }
 
-    private Expr equality()
-    {
-        Expr expr = comparison();
+    private static final Rule[] RULES = new Rule[TokenType.values().length];
 
-        while (match(BANG_EQUAL, EQUAL_EQUAL))
-        {
-            Token operator = previous();
-            Expr right = comparison();
+    static
+    {
+        Arrays.fill(RULES, new Rule(null, null, Precedence.NONE));
 
-            expr = new Expr.Binary(expr, operator, right);
-        }
+        rule(LEFT_PAREN,    Parser::grouping, Parser::finishCall, Precedence.CALL);
+        rule(DOT,           null,             Parser::property,   Precedence.CALL);
+        rule(MINUS,         Parser::unary,    Parser::binary,     Precedence.TERM);
+        rule(PLUS,          null,             Parser::binary,     Precedence.TERM);
+        rule(SLASH,         null,             Parser::binary,     Precedence.FACTOR);
+        rule(STAR,          null,             Parser::binary,     Precedence.FACTOR);
+        rule(BANG,          Parser::unary,    null,               Precedence.NONE);
+        rule(BANG_EQUAL,    null,             Parser::binary,     Precedence.EQUALITY);
+        rule(EQUAL,         null,             Parser::assignment, Precedence.ASSIGNMENT);
+        rule(EQUAL_EQUAL,   null,             Parser::binary,     Precedence.EQUALITY);
+        rule(GREATER,       null,             Parser::binary,     Precedence.COMPARISON);
+        rule(GREATER_EQUAL, null,             Parser::binary,     Precedence.COMPARISON);
+        rule(LESS,          null,             Parser::binary,     Precedence.COMPARISON);
+        rule(LESS_EQUAL,    null,             Parser::binary,     Precedence.COMPARISON);
+        rule(AND,           null,             Parser::logical,    Precedence.AND);
+        rule(OR,            null,             Parser::logical,    Precedence.OR);
+        rule(IDENTIFIER,    Parser::variable, null,               Precedence.NONE);
+        rule(NUMBER,        Parser::literal,  null,               Precedence.NONE);
+        rule(STRING,        Parser::literal,  null,               Precedence.NONE);
+        rule(FALSE,         Parser::literal,  null,               Precedence.NONE);
+        rule(TRUE,          Parser::literal,  null,               Precedence.NONE);
+        rule(NIL,           Parser::literal,  null,               Precedence.NONE);
+        rule(THIS,          Parser::self,     null,               Precedence.NONE);
+        rule(SUPER,         Parser::superclassMethod, null,       Precedence.NONE);
+    }
 
-        return expr;
+    private static void rule(TokenType type, PrefixParselet prefix, InfixParselet infix, Precedence precedence)
+    {
+        RULES[type.ordinal()] = new Rule(prefix, infix, precedence);
+    }
 
+    private Expr expression()
+    {
+        return parsePrecedence(Precedence.ASSIGNMENT.ordinal());
     }
 
-    private Expr comparison()
+    private Expr parsePrecedence(int precedence)
     {
-        Expr expr = addition();
+        PrefixParselet prefix = RULES[tokens_.type(current_).ordinal()].prefix;
+        if (prefix == null) throw error(peek(), "Expect expression.");
+
+        advance();
+        Expr expr = prefix.parse(this);
 
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL))
+        while (precedence <= RULES[tokens_.type(current_).ordinal()].precedence)
         {
-            Token operator = previous();
-            Expr right = addition();
-            expr = new Expr.Binary(expr, operator, right);
+            advance();
+            expr = RULES[tokens_.type(current_ - 1).ordinal()].infix.parse(this, expr);
         }
-
         return expr;
     }
 
-    private Expr addition()
+    // Right associative: the value is parsed at the level of '=' itself.
+    private Expr assignment(Expr expr)
     {
-        Expr expr = multiplication();
+        Token equals = previous();
+        Expr value = parsePrecedence(Precedence.ASSIGNMENT.ordinal());
 
-        while (match(MINUS, PLUS))
+        if (expr instanceof Expr.Variable)
+        {
+            Token name = ((Expr.Variable)expr).name;
+            return new Expr.Assign(name, value);
+        }
+        else if (expr instanceof Expr.Get)
         {
-            Token operator = previous();
-            Expr right = multiplication();
-            expr = new Expr.Binary(expr, operator, right);
+            Expr.Get get = (Expr.Get)expr;
+            return new Expr.Set(get.object, get.name, value);
         }
+        error(equals, "Invalid assignment target.");
 
         return expr;
     }
 
-    private Expr multiplication()
+    private Expr logical(Expr left)
     {
-        Expr expr = unary();
+        Token operator = previous();
+        Expr right = parsePrecedence(RULES[operator.type.ordinal()].precedence + 1);
+        return new Expr.Logical(left, operator, right);
+    }
 
-        while (match(STAR, SLASH))
-        {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    private Expr binary(Expr left)
+    {
+        Token operator = previous();
+        Expr right = parsePrecedence(RULES[operator.type.ordinal()].precedence + 1);
+        return new Expr.Binary(left, operator, right);
+    }
 
-        return expr;
+    private Expr property(Expr object)
+    {
+        consume(IDENTIFIER, "Expect property name after a '.'");
+        return new Expr.Get(object, previous());
     }
 
     private Expr unary()
     {
-        while (match(BANG, MINUS))
-        {
-            Token operator = previous();
-            Expr right = unary();
-            return  new Expr.Unary(operator, right);
-        }
-        return call();
+        Token operator = previous();
+        Expr right = parsePrecedence(Precedence.UNARY.ordinal());
+        return new Expr.Unary(operator, right);
     }
 
-    private Expr primary()
+    private Expr literal()
     {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE))  return new Expr.Literal(true);
-        if (match(NIL))   return new Expr.Literal(null);
-
-        if (match(NUMBER, STRING))
+        switch (tokens_.type(current_ - 1))
         {
-            return new Expr.Literal(previous().literal);
+            case FALSE: return new Expr.Literal(false);
+            case TRUE:  return new Expr.Literal(true);
+            case NIL:   return new Expr.Literal(null);
         }
+        return new Expr.Literal(tokens_.literal(current_ - 1));
+    }
 
-        if (match(THIS)) {
-            return new Expr.This(previous());
-        }
-
-        if (match(SUPER)) {
-            Token keyword = previous();
-            consume(DOT, "Expect '.' after 'super'");
-            consume(IDENTIFIER, "Expect method name after 'super.'.");
-            Token method = previous();
-            return new Expr.Super(keyword, method);
-
-        }
+    private Expr self()
+    {
+        return new Expr.This(previous());
+    }
 
-        if (match(LEFT_PAREN))
-        {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect a closing ')' after expression");
-            return new Expr.Grouping(expr);
-        }
+    private Expr superclassMethod()
+    {
+        Token keyword = previous();
+        consume(DOT, "Expect '.' after 'super'");
+        consume(IDENTIFIER, "Expect method name after 'super.'.");
+        Token method = previous();
+        return new Expr.Super(keyword, method);
+    }
 
-        if (match(IDENTIFIER))
-        {
-            return new Expr.Variable(previous());
-        }
+    private Expr grouping()
+    {
+        Expr expr = expression();
+        consume(RIGHT_PAREN, "Expect a closing ')' after expression");
+        return new Expr.Grouping(expr);
+    }
 
-        throw error(peek(), "Expect expression.");
+    private Expr variable()
+    {
+        return new Expr.Variable(previous());
     }
 
     private void synchronize()
@@ -471,9 +552,9 @@ class Parser
 
         while (!isAtEnd())
         {
-            if (previous().type == SEMICOLON) return;
+            if (tokens_.type(current_ - 1) == SEMICOLON) return;
 
-            switch(peek().type)
+            switch(tokens_.type(current_))
             {
                 case IF:
                 case CLASS:
@@ -490,15 +571,12 @@ class Parser
 
     }
 
-    private boolean match(TokenType... types)
+    private boolean match(TokenType type)
     {
-        for (TokenType type : types)
+        if (check(type))
         {
-            if (check(type))
-            {
-                advance();
-                return true;
-            }
+            advance();
+            return true;
         }
         return false;
     }
@@ -510,39 +588,42 @@ class Parser
             return false;
         }
 
-        return peek().type == type;
+        return tokens_.type(current_) == type;
     }
 
-    private Token consume(TokenType type, String message)
+    private void consume(TokenType type, String message)
     {
-        if (check(type)) return advance();
+        if (check(type))
+        {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
 
 
-    private Token advance()
+    private void advance()
     {
         if (!isAtEnd())
         {
             ++current_;
         }
-        return previous();
     }
 
     private Token previous()
     {
-        return tokens_.get(current_ - 1);
+        return tokens_.token(current_ - 1);
     }
 
     private boolean isAtEnd()
     {
-        return peek().type == EOF;
+        return tokens_.type(current_) == EOF;
     }
 
     private Token peek()
     {
-        return tokens_.get(current_);
+        return tokens_.token(current_);
     }
 
     private ParseError error(Token token, String message)
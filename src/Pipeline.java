@@ -0,0 +1,233 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Runs a script one top-level declaration at a time like --stream does,
+ * with the front end on threads of its own so that it overlaps execution:
+ *
+ *   the scanner thread scans the source in batches of tokens,
+ *   the front end thread parses, resolves and compiles each declaration,
+ *   the calling thread runs them.
+ *
+ * The stages hand their work over through bounded rings, so a stage that
+ * gets ahead waits instead of buffering the whole script.
+ *
+ * Errors are printed by the thread that finds them, so a syntax error can
+ * show up before the output of the declarations ahead of it, which still
+ * run, and alongside a runtime error raised by one of them.
+ */
+class Pipeline implements TokenStream.Producer
+{
+    private static final int BATCH_SIZE = 4096;
+
+    // Queued after the last declaration.
+    private static final Runnable END = () -> {};
+
+    private final ByteBuffer source;
+
+    // The Parser's stream, filled with the scanned batches.
+    private final TokenStream tokens;
+
+    private final Ring<TokenStream> batches = new Ring<>(16);
+    private final Ring<Runnable> declarations = new Ring<>(256);
+
+    private volatile Throwable failure = null;
+
+    Pipeline(ByteBuffer source)
+    {
+        this.source = source;
+        this.tokens = new TokenStream(source, this);
+    }
+
+    void run()
+    {
+        Thread scanner = start("lox-scanner", this::scan);
+        Thread frontEnd = start("lox-front-end", this::compile);
+
+        try
+        {
+            for (Runnable declaration = declarations.take(); declaration != END; declaration = declarations.take())
+            {
+                declaration.run();
+                if (Lox.hadRuntimeError) break;
+            }
+        }
+        finally
+        {
+            // Stops the front end if it's still going.
+            declarations.close();
+            join(frontEnd);
+            join(scanner);
+        }
+
+        if (failure instanceof Error) throw (Error)failure;
+        if (failure != null) throw (RuntimeException)failure;
+    }
+
+    private void scan()
+    {
+        try
+        {
+            Scanner scanner = new Scanner(source);
+            TokenStream batch;
+            do
+            {
+                batch = scanner.scanTokens(BATCH_SIZE);
+            }
+            while (batches.put(batch) && !endsWithEof(batch));
+        }
+        catch (RuntimeException | Error error)
+        {
+            failure = error;
+
+            // Ends the Parser's stream, and so the front end.
+            TokenStream end = new TokenStream(source, null);
+            end.add(TokenType.EOF, 0, 0, null, 0);
+            batches.put(end);
+        }
+    }
+
+    private static boolean endsWithEof(TokenStream batch)
+    {
+        return batch.size() > 0 && batch.type(batch.size() - 1) == TokenType.EOF;
+    }
+
+    private void compile()
+    {
+        try
+        {
+            Parser parser = new Parser(tokens);
+
+            while (parser.hasNext())
+            {
+                Stmt statement = parser.next();
+
+                // As when streaming, declarations after an error are only
+                // parsed for their errors.
+                if (Lox.hadError) continue;
+
+                List<Stmt> statements = new ArrayList<>();
+                statements.add(statement);
+
+                Runnable declaration = Lox.compile(statements);
+                if (declaration != null && !declarations.put(declaration)) break;
+            }
+        }
+        catch (RuntimeException | Error error)
+        {
+            failure = error;
+        }
+        finally
+        {
+            batches.close();
+            declarations.put(END);
+        }
+    }
+
+    @Override
+    public void produce(int index)
+    {
+        while (tokens.size() <= index)
+        {
+            tokens.append(batches.take());
+        }
+    }
+
+    // The source is mapped whole, there is no window to compact.
+    @Override
+    public void discarded()
+    {
+    }
+
+    private static Thread start(String name, Runnable stage)
+    {
+        Thread thread = new Thread(stage, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void join(Thread thread)
+    {
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException error)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Bounded ring for one producer and one consumer. Each index is only
+    // written by its own side and published with an ordered store, so no
+    // side ever takes a lock. A side that finds the ring full or empty
+    // spins for a while, then parks briefly between looks.
+    private static final class Ring<T>
+    {
+        private final Object[] items;
+        private final int mask;
+
+        // Next item to take, written by the consumer.
+        private final AtomicLong head = new AtomicLong();
+        // Next slot to put into, written by the producer.
+        private final AtomicLong tail = new AtomicLong();
+
+        private volatile boolean closed = false;
+
+        // The capacity must be a power of two.
+        Ring(int capacity)
+        {
+            items = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        // Returns false, dropping the item, once the consumer closed the ring.
+        boolean put(T item)
+        {
+            long tail = this.tail.get();
+            for (int spins = 0; tail - head.get() == items.length; ++spins)
+            {
+                if (closed) return false;
+                idle(spins);
+            }
+            if (closed) return false;
+
+            items[(int)tail & mask] = item;
+            this.tail.lazySet(tail + 1);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        T take()
+        {
+            long head = this.head.get();
+            for (int spins = 0; head == tail.get(); ++spins)
+            {
+                idle(spins);
+            }
+
+            int index = (int)head & mask;
+            T item = (T)items[index];
+            items[index] = null;
+            this.head.lazySet(head + 1);
+            return item;
+        }
+
+        void close()
+        {
+            closed = true;
+        }
+
+        private static void idle(int spins)
+        {
+            if (spins < 1000) Thread.onSpinWait();
+            else LockSupport.parkNanos(50_000);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.craftinginterpreters.lox;
+
+// Polymorphic inline cache of an Expr.Get or Expr.Set site. Each entry maps
+// the shape of the receiver to the slot of the property (-1 when the shape
+// has no such field) and to the shape the receiver has after a store. Once
+// LIMIT shapes have been seen the site is megamorphic and stops caching.
+final class PropertyCache
+{
+    private static final int LIMIT = 4;
+
+    final Shape[] shapes = new Shape[LIMIT];
+    final int[] slots = new int[LIMIT];
+    final Shape[] successors = new Shape[LIMIT];
+    private int count = 0;
+
+    int find(Shape shape)
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            if (shapes[i] == shape) return i;
+        }
+        return -1;
+    }
+
+    int add(Shape shape, int slot, Shape successor)
+    {
+        if (count == LIMIT) return -1;
+
+        shapes[count] = shape;
+        slots[count] = slot;
+        successors[count] = successor;
+        return count++;
+    }
+}
@@ -1,5 +1,6 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -7,10 +8,68 @@ import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
+    // Every local lives in a slot of the frame of its function, blocks
+    // included. Locals captured by a closure are boxed in a Cell and reached
+    // through the closure's upvalues. Slots are only known once all scopes of
+    // a function are closed, and whether a local is captured once all code
+    // that could reference it has been seen, so both are handed to the tree
+    // at the end of resolve() by these fixups.
+    private final List<Runnable> fixups = new ArrayList<>();
+    private final List<FunctionState> functions = new ArrayList<>();
+    private final FunctionState script = new FunctionState(null);
+    private FunctionState function = script;
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final List<Scope> roots = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        final Map<Local, Integer> upvalueIndices = new HashMap<>();
+        int frameSize = 0;
+
+        FunctionState(FunctionState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private static class Scope {
+        final Map<String, Local> locals = new HashMap<>();
+        final List<Scope> children = new ArrayList<>();
+        final FunctionState function;
+
+        int base = 0;
+
+        Scope(FunctionState function) {
+            this.function = function;
+        }
+    }
+
+    private static class Local {
+        final Scope scope;
+        final int index;
+        boolean defined = false;
+        boolean captured = false;
+
+        // Set for locals declared with 'var', so reads can be linked to
+        // their declaration and assignments can mark it as reassigned.
+        Stmt.Var declaration = null;
+
+        Local(Scope scope, int index) {
+            this.scope = scope;
+            this.index = index;
+        }
+
+        int slot() {
+            return scope.base + index;
+        }
+    }
+
+    private interface Location {
+        void set(Access access, int index, Local local);
+    }
+
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -26,10 +85,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private ClassType currentClass = ClassType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
-
     @Override
     public Void visitThisExpr(Expr.This expr) {
 
@@ -43,7 +98,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         }
 
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword.lexeme, (access, index, local) -> {
+            expr.access = access;
+            expr.index = index;
+        });
         return null;
 
     }
@@ -56,8 +114,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         else if (currentClass == ClassType.CLASS) {
             Lox.error(expr.keyword, "Cant use 'super' in class with no superclass.");
         }
+        else if (currentFunction == FunctionType.FUNCTION) {
+            Lox.error(expr.keyword, "Cannot use 'super' inside static method.");
+        }
 
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword.lexeme, (access, index, local) -> {
+            expr.access = access;
+            expr.index = index;
+        });
+        resolveLocal("this", (access, index, local) -> {
+            expr.thisAccess = access;
+            expr.thisIndex = index;
+        });
         return null;
     }
 
@@ -80,8 +148,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        Local local = declare(stmt.name);
         define(stmt.name);
+        fixups.add(() -> {
+            stmt.slot = slotOf(local);
+            stmt.captured = isCaptured(local);
+        });
 
         if (stmt.superclass != null) {
             currentClass = ClassType.SUBCLASS;
@@ -91,31 +163,33 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             else {
                 resolve(stmt.superclass);
                 beginScope();
-                scopes.peek().put("super", true);
+
+                // Only ever read by methods, so it always lives in a Cell.
+                Local superclass = defineSynthetic("super");
+                superclass.captured = true;
+                fixups.add(() -> stmt.superSlot = superclass.slot());
             }
         }
 
-        beginScope();
-
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) declaration = FunctionType.INITIALIZER;
             resolveFunction(method, declaration);
         }
 
+        // Static members live on the class object and are not bound to an
+        // instance, so they get no 'this'.
         for (Stmt field : stmt.fields) {
             if (field instanceof Stmt.Function) {
                 FunctionType declaration = FunctionType.FUNCTION;
                 resolveFunction((Stmt.Function)field, declaration);
             }
             else if (field instanceof Stmt.Var) {
-                resolve((Stmt.Var)field);
+                Stmt.Var var = (Stmt.Var)field;
+                if (var.initializer != null) resolve(var.initializer);
             }
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
         currentClass = enclosingClass;
 
@@ -185,7 +259,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
 
-        if (currentFunction == null) {
+        if (currentFunction == FunctionType.NONE) {
             Lox.error(stmt.keyword, "Can't return from top-level code.");
         }
 
@@ -196,6 +270,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 Lox.error(stmt.keyword, "Can't return from constructor.");
             }
 
+            // The call is the last thing the function does, so the
+            // interpreter can run it in place of the current frame.
+            stmt.tailCall = currentFunction != FunctionType.NONE && stmt.value instanceof Expr.Call;
             resolve(stmt.value);
         }
         return null;
@@ -209,8 +286,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        Local local = declare(stmt.name);
         define(stmt.name);
+        fixups.add(() -> {
+            stmt.slot = slotOf(local);
+            stmt.captured = isCaptured(local);
+        });
+
+        // Resolved by resolveDeferred once the body is parsed.
+        if (stmt.deferred != null) {
+            stmt.upvalues = new ArrayList<>();
+            return null;
+        }
 
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -219,13 +306,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr.name.lexeme, (access, index, local) -> {
+            expr.access = access;
+            expr.index = index;
+            if (local.declaration != null) local.declaration.reassigned = true;
+        });
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.token);
+        Local local = declare(stmt.token);
+        if (local != null) {
+            local.declaration = stmt;
+        }
+        fixups.add(() -> {
+            stmt.slot = slotOf(local);
+            stmt.captured = isCaptured(local);
+        });
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -237,22 +335,53 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
-        resolve(stmt.statements);
+        resolveStatements(stmt.statements);
         endScope();
         return null;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        if (!scopes.isEmpty() && scopes.peek().locals.containsKey(expr.name.lexeme) && !scopes.peek().locals.get(expr.name.lexeme).defined) {
             Lox.error(expr.name, "Can't read local variable in its own initializer");
         }
 
-        resolveLocal(expr, expr.name );
+        resolveLocal(expr.name.lexeme, (access, index, local) -> {
+            expr.access = access;
+            expr.index = index;
+            expr.declaration = local.declaration;
+        });
         return null;
     }
 
     void resolve(List<Stmt> statements) {
+        resolveStatements(statements);
+        finish();
+    }
+
+    // Resolves a top-level function whose body was parsed on its first
+    // call. Only globals are around it.
+    void resolveDeferred(Stmt.Function stmt) {
+        resolveFunction(stmt, FunctionType.FUNCTION);
+        finish();
+    }
+
+    private void finish() {
+        place(script);
+        for (FunctionState state : functions) {
+            place(state);
+        }
+        for (Runnable fixup : fixups) {
+            fixup.run();
+        }
+    }
+
+    // Number of slots in the frame top-level code runs in.
+    int scriptFrameSize() {
+        return script.frameSize;
+    }
+
+    private void resolveStatements(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
         }
@@ -266,55 +395,153 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Globals are not found and keep their default GLOBAL access.
+    private void resolveLocal(String name, Location location) {
         for (int i = scopes.size() - 1; i >= 0; --i) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            Local local = scopes.get(i).locals.get(name);
+            if (local == null) continue;
+
+            if (local.scope.function == function) {
+                fixups.add(() -> location.set(local.captured ? Access.CELL : Access.LOCAL, local.slot(), local));
             }
+            else {
+                local.captured = true;
+                location.set(Access.UPVALUE, resolveUpvalue(function, local), local);
+            }
+            return;
+        }
+    }
+
+    // Index of the upvalue of state for a local of an enclosing function,
+    // threading it through the upvalues of the functions in between.
+    private int resolveUpvalue(FunctionState state, Local local) {
+        Integer known = state.upvalueIndices.get(local);
+        if (known != null) return known;
+
+        Upvalue upvalue;
+        if (local.scope.function == state.enclosing) {
+            upvalue = new Upvalue(true, -1);
+            fixups.add(() -> upvalue.index = local.slot());
+        }
+        else {
+            upvalue = new Upvalue(false, resolveUpvalue(state.enclosing, local));
         }
+
+        state.upvalues.add(upvalue);
+        state.upvalueIndices.put(local, state.upvalues.size() - 1);
+        return state.upvalues.size() - 1;
+    }
+
+    private static void place(FunctionState state) {
+        for (Scope root : state.roots) {
+            state.frameSize = Math.max(state.frameSize, place(root, 0));
+        }
+    }
+
+    // Lays out the locals of scope from base and returns the number of
+    // slots it needs. Nested blocks take the slots after the locals of their
+    // parent; sibling blocks share the same slots.
+    private static int place(Scope scope, int base) {
+        scope.base = base;
+        int size = scope.locals.size();
+        int needed = size;
+
+        for (Scope child : scope.children) {
+            needed = Math.max(needed, size + place(child, base + size));
+        }
+        return needed;
+    }
+
+    private static int slotOf(Local local) {
+        return local == null ? -1 : local.slot();
+    }
+
+    private static boolean isCaptured(Local local) {
+        return local != null && local.captured;
     }
 
     private void resolveFunction(Stmt.Function stmt, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        FunctionState enclosingState = function;
 
         currentFunction = type;
+        FunctionState state = new FunctionState(enclosingState);
+        functions.add(state);
+        function = state;
 
         beginScope();
+        List<Local> parameters = new ArrayList<>();
         for (Token param : stmt.parameters) {
-            declare(param);
+            parameters.add(declare(param));
             define(param);
         }
 
-        resolve(stmt.body);
+        // Methods get their receiver in the slot after the arguments.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            parameters.add(defineSynthetic("this"));
+        }
 
+        resolveStatements(stmt.body);
         endScope();
+
+        stmt.upvalues = state.upvalues;
+        fixups.add(() -> {
+            stmt.frameSize = state.frameSize;
+            stmt.capturedParameters = parameters.stream()
+                .filter(local -> local.captured)
+                .mapToInt(Local::slot)
+                .toArray();
+        });
+
+        function = enclosingState;
         currentFunction = enclosingFunction;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        Scope scope = new Scope(function);
+
+        if (!scopes.isEmpty() && scopes.peek().function == function) {
+            scopes.peek().children.add(scope);
+        }
+        else {
+            function.roots.add(scope);
+        }
+        scopes.push(scope);
     }
 
     private void endScope() {
         scopes.pop();
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    // Returns null for globals, which have no Local.
+    private Local declare(Token name) {
+        if (scopes.isEmpty()) return null;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Scope scope = scopes.peek();
 
-        if (scope.containsKey(name.lexeme)) {
+        Local local = scope.locals.get(name.lexeme);
+        if (local != null) {
             Lox.error(name, "A variable with the same name already exists in this scope.");
         }
-        scope.put(name.lexeme, false);
+        else {
+            local = new Local(scope, scope.locals.size());
+            scope.locals.put(name.lexeme, local);
+        }
+        return local;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
 
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().locals.get(name.lexeme).defined = true;
+    }
+
+    private Local defineSynthetic(String name) {
+        Scope scope = scopes.peek();
+        Local local = new Local(scope, scope.locals.size());
+        local.defined = true;
+        scope.locals.put(name, local);
+        return local;
     }
 
 }
\ No newline at end of file
@@ -3,10 +3,20 @@ package com.craftinginterpreters.lox;
 class RuntimeError extends RuntimeException
 {
 	final Token token;
+	final int line;
 
 	RuntimeError(Token token, String message)
 	{
 		super(message);
 		this.token = token;
+		this.line = token.line;
+	}
+
+	// Used by the VM, which only knows the line of the failing instruction.
+	RuntimeError(int line, String message)
+	{
+		super(message);
+		this.token = null;
+		this.line = line;
 	}
 }
\ No newline at end of file
@@ -1,18 +1,41 @@
 package com.craftinginterpreters.lox;
 
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 import static com.craftinginterpreters.lox.Token.*;
 
-class Scanner
+// Scans UTF-8 source straight out of a ByteBuffer, which for files is a
+// MappedByteBuffer, so the source is never decoded as a whole. Tokens are
+// recorded in a TokenStream as ranges of the buffer; only the values of
+// number and string literals are decoded while scanning. Lox syntax is
+// ASCII, other characters can only appear in strings and comments.
+//
+// A source read from a channel is streamed instead: the buffer is only a
+// window, filled as the scanner reaches its end, and tokens are scanned as
+// the Parser asks for them. Once the Parser drops the tokens it is done
+// with, compact() drops the source they were scanned from.
+//
+// The Pipeline scans a whole source in batches on a thread of its own;
+// the errors of a batch are then reported by the Parser's thread.
+class Scanner implements TokenStream.Producer
 {
-	private final String source_code_;
-	private final List<Token> tokens_ = new ArrayList<>();
+	private ByteBuffer source_code_;
+	private int length_;
+	private TokenStream tokens_;
+
+	// The streamed input, null once it is exhausted or for a whole source.
+	private ReadableByteChannel input_ = null;
+
+	// Whether tokens are scanned in batches, see scanTokens(int).
+	private boolean batched_ = false;
 
 	private int start = 0;
 	private int current = 0;
@@ -44,12 +67,32 @@ class Scanner
 	};
 
 	Scanner(String source)
+	{
+		this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	Scanner(ByteBuffer source)
 	{
 		source_code_ = source;
+		length_ = source.limit();
+		tokens_ = new TokenStream(source, null);
+	}
+
+	Scanner(ReadableByteChannel input)
+	{
+		source_code_ = ByteBuffer.allocate(64 * 1024);
+		length_ = 0;
+		tokens_ = new TokenStream(source_code_, this);
+		input_ = input;
+	}
+
+	TokenStream tokens()
+	{
+		return tokens_;
 	}
 
 
-	List<Token> scanTokens()
+	TokenStream scanTokens()
 	{
 
 		while (!isAtEnd())
@@ -59,10 +102,99 @@ class Scanner
 			scanToken();
 		}
 
-		tokens_.add(new Token(EOF, "", null, line));
+		tokens_.add(EOF, current, current, null, line);
+		return tokens_;
+	}
+
+	// Scans the next count tokens into a stream of their own, which ends
+	// early with EOF or after a scan error.
+	TokenStream scanTokens(int count)
+	{
+		batched_ = true;
+		tokens_ = new TokenStream(source_code_, null);
+		scanTo(count - 1);
 		return tokens_;
 	}
 
+	@Override
+	public void produce(int index)
+	{
+		scanTo(index);
+	}
+
+	@Override
+	public void discarded()
+	{
+		compact();
+	}
+
+	// Scans until the stream holds the token at index, or ends with EOF.
+	private void scanTo(int index)
+	{
+		while (tokens_.size() <= index && !tokens_.hasDeferredError())
+		{
+			if (isAtEnd())
+			{
+				tokens_.add(EOF, current, current, null, line);
+				return;
+			}
+
+			start = current;
+
+			scanToken();
+		}
+	}
+
+	// Moves the source the stream's tokens still point into to the start
+	// of the window, dropping what is before it.
+	private void compact()
+	{
+		int offset = tokens_.size() > 0 ? Math.min(tokens_.start(0), start) : current;
+		if (offset == 0) return;
+
+		byte[] window = source_code_.array();
+		System.arraycopy(window, offset, window, 0, length_ - offset);
+		length_ -= offset;
+		start -= offset;
+		current -= offset;
+		tokens_.shift(offset);
+	}
+
+	// Reads the streamed input until the byte at index is in the window.
+	// Returns false if the input ends before.
+	private boolean fill(int index)
+	{
+		if (input_ == null) return false;
+
+		try
+		{
+			while (index >= length_)
+			{
+				if (length_ == source_code_.capacity())
+				{
+					ByteBuffer larger = ByteBuffer.allocate(length_ * 2);
+					larger.put(0, source_code_, 0, length_);
+					source_code_ = larger;
+					tokens_.source(larger);
+				}
+
+				source_code_.position(length_);
+				int read = input_.read(source_code_);
+				if (read < 0)
+				{
+					input_ = null;
+					return false;
+				}
+				length_ += read;
+			}
+			return true;
+		}
+		catch (IOException error)
+		{
+			throw new UncheckedIOException(error);
+		}
+	}
+
 	private void scanToken()
 	{
 		char c = advance();
@@ -131,7 +263,12 @@ class Scanner
 				}
 				else
 				{
-					Lox.error(line, "Unexpected character: [" + c + "]");
+					// Report a multi-byte character once, not per byte.
+					while (c >= 0xc0 && (peek() & 0xc0) == 0x80)
+					{
+						advance();
+					}
+					error("Unexpected character: [" + text(start, current) + "]");
 				}
 
 				break;
@@ -151,7 +288,7 @@ class Scanner
 
 		if (isAtEnd())
 		{
-			Lox.error(line, "Unterminated comment.");
+			error("Unterminated comment.");
 			return;
 		}
 
@@ -192,14 +329,13 @@ class Scanner
 
 		if (isAtEnd())
 		{
-			Lox.error(line, "Unterminated string");
+			error("Unterminated string");
 			return;
 		}
 
 		advance();
 
-		String string_value = source_code_.substring(start + 1, current - 1);
-		addToken(STRING, string_value);
+		tokens_.add(STRING, start, current, text(start + 1, current - 1), line);
 	}
 
 	private void handle_number()
@@ -220,7 +356,7 @@ class Scanner
 				advance();
 			}
 		}
-		addToken(NUMBER, Double.parseDouble(source_code_.substring(start, current)));
+		tokens_.add(NUMBER, start, current, Double.parseDouble(text(start, current)), line);
 	}
 
 	private void handle_identifier()
@@ -230,9 +366,7 @@ class Scanner
 			advance();
 		}
 
-		String text = source_code_.substring(start, current);
-
-		TokenType type = keywords.get(text);
+		TokenType type = keywords.get(Symbols.intern(source_code_, start, current));
 
 		if (type == null) type = IDENTIFIER;
 
@@ -246,36 +380,49 @@ class Scanner
 			return '\0';
 		}
 
-		return source_code_.charAt(current);
+		return charAt(current);
 	}
 
 	private char peekNext()
 	{
-		if (current + 1 >= source_code_.length())
+		if (current + 1 >= length_ && !fill(current + 1))
 		{
 			return '\0';
 		}
 
-		return source_code_.charAt(current + 1);
+		return charAt(current + 1);
 	}
 
 	private char advance()
 	{
 		++current;
 
-		return source_code_.charAt(current - 1);
+		return charAt(current - 1);
 	}
 
-	private void addToken(TokenType type)
+	// Bytes of multi-byte characters come out as chars above 0x7f, which
+	// are neither letters nor digits nor punctuation.
+	private char charAt(int index)
 	{
-		addToken(type, null);
+		return (char)(source_code_.get(index) & 0xff);
 	}
 
-	private void addToken(TokenType type, Object literal)
+	private String text(int start, int end)
 	{
-		String text = source_code_.substring(start, current);
+		byte[] bytes = new byte[end - start];
+		source_code_.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
 
-		tokens_.add(new Token(type, text, literal, line));
+	private void error(String message)
+	{
+		if (batched_) tokens_.defer(line, message);
+		else Lox.error(line, message);
+	}
+
+	private void addToken(TokenType type)
+	{
+		tokens_.add(type, start, current, null, line);
 	}
 
 	private boolean match(char expected)
@@ -285,7 +432,7 @@ class Scanner
 			return false;
 		}
 
-		if (source_code_.charAt(current) != expected)
+		if (charAt(current) != expected)
 		{
 			return false;
 		}
@@ -296,7 +443,7 @@ class Scanner
 
 	private boolean isAtEnd()
 	{
-		return current >= source_code_.length();
+		return current >= length_ && !fill(current);
 	}
 
 	private boolean isDigit(char c)
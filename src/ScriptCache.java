@@ -0,0 +1,316 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Keeps the bytecode compiled from a script in a file next to it (foo.lox
+ * gets foo.loxc), so running the same script again skips scanning, parsing,
+ * resolving and compiling. The file starts with a SHA-256 of the source it
+ * was compiled from together with a stamp of the jlox build that compiled
+ * it, so a file that an edited script or a rebuilt jlox no longer matches
+ * is ignored and replaced.
+ *
+ * Functions are written depth first: name, arity, upvalue count, the
+ * initializer flag, the code, its lines as runs of (line, length), then the
+ * tagged constants, a function constant being written in place.
+ */
+class ScriptCache
+{
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+
+    // Stamp of the build, or null when its class files can't be found,
+    // which leaves nothing to tell a stale file from a current one by and
+    // so disables the cache.
+    private static final byte[] BUILD = build();
+
+    private static final byte NIL = 0;
+    private static final byte NUMBER = 1;
+    private static final byte STRING = 2;
+    private static final byte NAME = 3;
+    private static final byte FUNCTION = 4;
+    private static final byte MEMBER = 5;
+
+    private final Path path;
+    private final byte[] digest;
+
+    ScriptCache(Path script, ByteBuffer source)
+    {
+        this.path = script.resolveSibling(script.getFileName() + "c");
+        this.digest = digest(source);
+    }
+
+    private static byte[] digest(ByteBuffer source)
+    {
+        if (BUILD == null) return null;
+
+        MessageDigest sha = sha256();
+        sha.update(BUILD);
+        sha.update(source.duplicate());
+        return sha.digest();
+    }
+
+    // Name, size and modification time of every class file in the
+    // package, or of the jar the classes were loaded from, so any rebuild
+    // changes it. Anything in the front end can change the bytecode a
+    // script compiles to, not just the compiler. Hashing the files
+    // themselves would take longer than a cache hit saves on small scripts.
+    private static byte[] build()
+    {
+        CodeSource code = ScriptCache.class.getProtectionDomain().getCodeSource();
+        if (code == null) return null;
+
+        try
+        {
+            Path location = Paths.get(code.getLocation().toURI());
+
+            List<Path> files = new ArrayList<>();
+            if (Files.isDirectory(location))
+            {
+                Path directory = location.resolve(ScriptCache.class.getPackageName().replace('.', '/'));
+                try (DirectoryStream<Path> classes = Files.newDirectoryStream(directory, "*.class"))
+                {
+                    for (Path file : classes) files.add(file);
+                }
+                Collections.sort(files);
+            }
+            else
+            {
+                files.add(location);
+            }
+
+            StringBuilder stamp = new StringBuilder();
+            for (Path file : files)
+            {
+                stamp.append(file.getFileName()).append(' ')
+                     .append(Files.size(file)).append(' ')
+                     .append(Files.getLastModifiedTime(file).toMillis()).append('\n');
+            }
+
+            MessageDigest sha = sha256();
+            sha.update(stamp.toString().getBytes(StandardCharsets.UTF_8));
+            return sha.digest();
+        }
+        catch (IOException | URISyntaxException | RuntimeException error)
+        {
+            return null;
+        }
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException error)
+        {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // The cached script, or null when there is none for this source.
+    VM.ObjFunction load()
+    {
+        if (digest == null || !Files.isReadable(path)) return null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (in.getInt() != MAGIC) return null;
+
+            byte[] stored = new byte[digest.length];
+            in.get(stored);
+            if (!MessageDigest.isEqual(stored, digest)) return null;
+
+            return readFunction(in);
+        }
+        // A truncated or foreign file is just a miss.
+        catch (IOException | RuntimeException error)
+        {
+            return null;
+        }
+    }
+
+    // Best effort: a script in a read-only directory still runs, uncached.
+    void store(VM.ObjFunction script)
+    {
+        if (digest == null) return;
+
+        Path temporary = null;
+        try
+        {
+            // Written aside and renamed, so concurrent runs never read half a file.
+            temporary = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary))))
+            {
+                out.writeInt(MAGIC);
+                out.write(digest);
+                writeFunction(out, script);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException error)
+        {
+            try
+            {
+                if (temporary != null) Files.deleteIfExists(temporary);
+            }
+            catch (IOException ignored)
+            {
+            }
+        }
+    }
+
+    private static void writeFunction(DataOutputStream out, VM.ObjFunction function) throws IOException
+    {
+        Chunk chunk = function.chunk;
+
+        writeString(out, function.name);
+        out.writeInt(function.arity);
+        out.writeInt(function.upvalueCount);
+        out.writeBoolean(function.isInitializer);
+
+        out.writeInt(chunk.count);
+        out.write(chunk.code, 0, chunk.count);
+        for (int start = 0, end; start < chunk.count; start = end)
+        {
+            for (end = start + 1; end < chunk.count && chunk.lines[end] == chunk.lines[start]; ++end) {}
+            out.writeInt(chunk.lines[start]);
+            out.writeInt(end - start);
+        }
+
+        out.writeInt(chunk.constants.size());
+        for (int i = 0; i < chunk.constants.size(); ++i)
+        {
+            Object constant = chunk.constants.get(i);
+            if (constant == null)
+            {
+                out.writeByte(NIL);
+            }
+            else if (constant instanceof Double)
+            {
+                out.writeByte(NUMBER);
+                out.writeDouble((double)constant);
+            }
+            else if (constant instanceof String)
+            {
+                out.writeByte(chunk.names.get(i) ? MEMBER : STRING);
+                writeString(out, (String)constant);
+            }
+            else if (constant instanceof Token)
+            {
+                Token name = (Token)constant;
+                out.writeByte(NAME);
+                out.writeByte(name.type.ordinal());
+                writeString(out, name.lexeme);
+                out.writeInt(name.line);
+            }
+            else
+            {
+                out.writeByte(FUNCTION);
+                writeFunction(out, (VM.ObjFunction)constant);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static VM.ObjFunction readFunction(ByteBuffer in)
+    {
+        VM.ObjFunction function = new VM.ObjFunction(readName(in));
+        function.arity = in.getInt();
+        function.upvalueCount = in.getInt();
+        function.isInitializer = in.get() != 0;
+
+        Chunk chunk = function.chunk;
+        chunk.count = in.getInt();
+        chunk.code = new byte[chunk.count];
+        in.get(chunk.code);
+        chunk.lines = new int[chunk.count];
+        for (int start = 0; start < chunk.count; )
+        {
+            int line = in.getInt();
+            int length = in.getInt();
+            Arrays.fill(chunk.lines, start, start + length, line);
+            start += length;
+        }
+
+        int constants = in.getInt();
+        for (int i = 0; i < constants; ++i)
+        {
+            byte tag = in.get();
+            switch (tag)
+            {
+                case NIL:
+                    chunk.addConstant(null);
+                    break;
+                case NUMBER:
+                    chunk.addConstant(in.getDouble());
+                    break;
+                case STRING:
+                    chunk.addConstant(readString(in));
+                    break;
+                case MEMBER:
+                    chunk.names.set(chunk.addConstant(readName(in)));
+                    break;
+                case NAME:
+                    TokenType type = TokenType.values()[in.get()];
+                    String lexeme = readName(in);
+                    // Token counts lines from zero.
+                    chunk.addConstant(new Token(type, lexeme, null, in.getInt() - 1));
+                    break;
+                case FUNCTION:
+                    chunk.addConstant(readFunction(in));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown constant tag " + tag + ".");
+            }
+        }
+        return function;
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Names go back through Symbols so they are the same objects as the
+    // scanned names, which the shapes and method tables match by identity
+    // before comparing characters. String literals don't, so that they
+    // don't fill the table. Symbols only holds ASCII, which all names are.
+    private static String readName(ByteBuffer in)
+    {
+        int length = in.getInt();
+        int start = in.position();
+        in.position(start + length);
+        return Symbols.intern(in, start, start + length);
+    }
+}
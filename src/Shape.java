@@ -0,0 +1,48 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Hidden class describing the field layout of a LoxInstance. Instances that
+// got the same fields in the same order share a Shape, and adding a field
+// moves an instance along a cached transition to the next one.
+final class Shape
+{
+    static final Shape EMPTY = new Shape(new HashMap<>());
+
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    private Shape(Map<String, Integer> slots)
+    {
+        this.slots = slots;
+    }
+
+    int slotOf(String name)
+    {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int size()
+    {
+        return slots.size();
+    }
+
+    // The shape of an instance after storing name: this one if it already
+    // has the field, the transition adding it otherwise.
+    Shape withField(String name)
+    {
+        if (slots.containsKey(name)) return this;
+
+        Shape next = transitions.get(name);
+        if (next == null)
+        {
+            Map<String, Integer> nextSlots = new HashMap<>(slots);
+            nextSlots.put(name, slots.size());
+            next = new Shape(nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -42,6 +42,11 @@ abstract class Stmt
 		List<Stmt.Function> methods;
 		List<Stmt> fields;
 
+		// Resolved fields
+		int slot;
+		boolean captured;
+		int superSlot;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitClassStmt(this);
@@ -59,6 +64,9 @@ abstract class Stmt
 		Token keyword;
 		Expr value;
 
+		// Resolved fields
+		boolean tailCall;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitReturnStmt(this);
@@ -78,6 +86,14 @@ abstract class Stmt
 		List<Token> parameters;
 		List<Stmt> body;
 
+		// Resolved fields
+		int slot;
+		boolean captured;
+		int frameSize;
+		List<Upvalue> upvalues;
+		int[] capturedParameters;
+		DeferredBody deferred;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitFunctionStmt(this);
@@ -146,6 +162,11 @@ abstract class Stmt
 		Token token;
 		Expr initializer;
 
+		// Resolved fields
+		int slot;
+		boolean captured;
+		boolean reassigned;
+
 		<R> R accept(Visitor<R> visitor)
 		{
 			return visitor.visitVarStmt(this);
@@ -0,0 +1,88 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Table of the canonical String for every name and punctuator scanned, so
+// each distinct lexeme is allocated once however often it occurs.
+//
+// Since a String caches its hash, a symbol's hash is computed only once,
+// and the maps keyed by names (globals, shapes, method tables) find their
+// keys by identity in String.equals instead of comparing characters.
+//
+// The table lives as long as the process, which for the REPL or a long
+// stream can see any number of names, so it stops taking new symbols once
+// it holds LIMIT of them. Lexemes past that are plain Strings, which the
+// maps still find by comparing characters.
+final class Symbols
+{
+	private static final int LIMIT = 1 << 16;
+
+	private static String[] table = new String[1024];
+	private static int count = 0;
+
+	private Symbols()
+	{
+	}
+
+	// The symbol for the ASCII bytes source[start, end), looked up without
+	// allocating. The hash is computed like String.hashCode.
+	static synchronized String intern(ByteBuffer source, int start, int end)
+	{
+		int hash = 0;
+		for (int i = start; i < end; ++i)
+		{
+			hash = 31 * hash + (source.get(i) & 0xff);
+		}
+
+		int mask = table.length - 1;
+		int index = hash & mask;
+		for (String symbol = table[index]; symbol != null; symbol = table[index])
+		{
+			if (symbol.hashCode() == hash && matches(symbol, source, start, end))
+			{
+				return symbol;
+			}
+			index = (index + 1) & mask;
+		}
+
+		byte[] bytes = new byte[end - start];
+		source.get(start, bytes);
+		String symbol = new String(bytes, StandardCharsets.US_ASCII);
+		if (count == LIMIT) return symbol;
+
+		table[index] = symbol;
+		if (++count * 2 > table.length) grow();
+		return symbol;
+	}
+
+	private static boolean matches(String symbol, ByteBuffer source, int start, int end)
+	{
+		if (symbol.length() != end - start) return false;
+
+		for (int i = start; i < end; ++i)
+		{
+			if (symbol.charAt(i - start) != (source.get(i) & 0xff)) return false;
+		}
+		return true;
+	}
+
+	private static void grow()
+	{
+		String[] old = table;
+		table = new String[old.length * 2];
+		int mask = table.length - 1;
+
+		for (String symbol : old)
+		{
+			if (symbol == null) continue;
+
+			int index = symbol.hashCode() & mask;
+			while (table[index] != null)
+			{
+				index = (index + 1) & mask;
+			}
+			table[index] = symbol;
+		}
+	}
+}
@@ -21,6 +21,8 @@ class Token
 
 
 	final TokenType type;
+
+	// The canonical symbol from Symbols for everything but literals.
 	final String 	lexeme;
 	final Object 	literal;
 	final int 		line;
@@ -0,0 +1,187 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The tokens of a source as parallel arrays instead of a Token object each.
+// The Parser walks them by index and only materializes a Token for the ones
+// the syntax tree keeps, with the lexeme read back from the source: names
+// and punctuators from Symbols, literals decoded.
+//
+// The tokens of a streamed source are asked of a Producer as the Parser
+// reaches them, and discard() drops the ones the Parser is done with.
+final class TokenStream
+{
+	interface Producer
+	{
+		// Adds tokens to the stream until it holds the one at index.
+		void produce(int index);
+
+		// Called once tokens have been dropped from the stream.
+		void discarded();
+	}
+
+	private static final TokenType[] TYPES = TokenType.values();
+
+	private ByteBuffer source;
+
+	// Null when the source is scanned whole up front.
+	private final Producer producer;
+
+	private byte[] types = new byte[256];
+	private int[] starts = new int[256];
+	private int[] lengths = new int[256];
+	private int[] lines = new int[256];
+
+	// Value of number and string literals, null for other tokens.
+	private Object[] literals = new Object[256];
+
+	private int count = 0;
+
+	// A scan error that ends a batch scanned by the Pipeline's thread, and
+	// the one of the last batch appended, reported with the next batch:
+	// that is when the Parser reaches past it, as it would scanning itself.
+	private String deferredError = null;
+	private int deferredLine;
+	private TokenStream pending = null;
+
+	TokenStream(ByteBuffer source, Producer producer)
+	{
+		this.source = source;
+		this.producer = producer;
+	}
+
+	void add(TokenType type, int start, int end, Object literal, int line)
+	{
+		ensureCapacity(count + 1);
+
+		types[count] = (byte)type.ordinal();
+		starts[count] = start;
+		lengths[count] = end - start;
+		lines[count] = line;
+		literals[count] = literal;
+		++count;
+	}
+
+	// Appends the tokens of a batch, see deferredError.
+	void append(TokenStream batch)
+	{
+		if (pending != null) Lox.error(pending.deferredLine, pending.deferredError);
+		pending = batch.deferredError != null ? batch : null;
+
+		ensureCapacity(count + batch.count);
+		System.arraycopy(batch.types, 0, types, count, batch.count);
+		System.arraycopy(batch.starts, 0, starts, count, batch.count);
+		System.arraycopy(batch.lengths, 0, lengths, count, batch.count);
+		System.arraycopy(batch.lines, 0, lines, count, batch.count);
+		System.arraycopy(batch.literals, 0, literals, count, batch.count);
+		count += batch.count;
+	}
+
+	void defer(int line, String message)
+	{
+		deferredLine = line;
+		deferredError = message;
+	}
+
+	boolean hasDeferredError()
+	{
+		return deferredError != null;
+	}
+
+	private void ensureCapacity(int size)
+	{
+		if (size <= types.length) return;
+
+		int capacity = Math.max(types.length * 2, size);
+		types = Arrays.copyOf(types, capacity);
+		starts = Arrays.copyOf(starts, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+		lines = Arrays.copyOf(lines, capacity);
+		literals = Arrays.copyOf(literals, capacity);
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	TokenType type(int index)
+	{
+		if (index >= count && producer != null) producer.produce(index);
+
+		return TYPES[types[index]];
+	}
+
+	int start(int index)
+	{
+		return starts[index];
+	}
+
+	// The value of a number or string literal, without the Token.
+	Object literal(int index)
+	{
+		if (index >= count && producer != null) producer.produce(index);
+
+		return literals[index];
+	}
+
+	// Drops the tokens before index, which renumbers the others from zero.
+	void discard(int index)
+	{
+		if (producer == null || index <= 0) return;
+
+		int remaining = count - index;
+		System.arraycopy(types, index, types, 0, remaining);
+		System.arraycopy(starts, index, starts, 0, remaining);
+		System.arraycopy(lengths, index, lengths, 0, remaining);
+		System.arraycopy(lines, index, lines, 0, remaining);
+		System.arraycopy(literals, index, literals, 0, remaining);
+		Arrays.fill(literals, remaining, count, null);
+		count = remaining;
+
+		producer.discarded();
+	}
+
+	// Called by the Scanner when it moves its window.
+	void shift(int offset)
+	{
+		for (int i = 0; i < count; ++i)
+		{
+			starts[i] -= offset;
+		}
+	}
+
+	void source(ByteBuffer source)
+	{
+		this.source = source;
+	}
+
+	Token token(int index)
+	{
+		TokenType type = type(index);
+		int start = starts[index];
+		int end = start + lengths[index];
+
+		String lexeme;
+		switch (type)
+		{
+			case NUMBER:
+			case STRING:
+			{
+				byte[] bytes = new byte[end - start];
+				source.get(start, bytes);
+				lexeme = new String(bytes, StandardCharsets.UTF_8);
+				break;
+			}
+			case EOF:
+				lexeme = "";
+				break;
+			default:
+				lexeme = Symbols.intern(source, start, end);
+				break;
+		}
+		return new Token(type, lexeme, literals[index], lines[index]);
+	}
+}
@@ -0,0 +1,103 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.Interpreter.*;
+
+// Self-specializing implementation of an Expr.Unary site, see BinaryOperation.
+abstract class UnaryOperation
+{
+    abstract Object execute(Expr.Unary site, Object right);
+
+    Object execute(Interpreter interpreter, Expr.Unary site)
+    {
+        return execute(site, interpreter.evaluate(site.right));
+    }
+
+    double executeDouble(Interpreter interpreter, Expr.Unary site) throws UnexpectedResultException
+    {
+        return BinaryOperation.expectDouble(execute(interpreter, site));
+    }
+
+    static final UnaryOperation UNINITIALIZED = new UnaryOperation() {
+        @Override
+        Object execute(Expr.Unary site, Object right)
+        {
+            site.operation = specialize(site.operator.type, right);
+            return site.operation.execute(site, right);
+        }
+    };
+
+    static final UnaryOperation GENERIC = new UnaryOperation() {
+        @Override
+        Object execute(Expr.Unary site, Object right)
+        {
+            switch (site.operator.type)
+            {
+                case MINUS:
+                    checkNumberOperand(site.operator, right);
+                    return -(double)right;
+                case BANG:
+                    return !isTruthy(right);
+            }
+            return null;
+        }
+    };
+
+    private static UnaryOperation specialize(TokenType operator, Object right)
+    {
+        if (operator == TokenType.MINUS && right instanceof Double) return new NumberNegate();
+        if (operator == TokenType.BANG && right instanceof Boolean) return new BooleanNot();
+        return GENERIC;
+    }
+
+    Object deoptimize(Expr.Unary site, Object right)
+    {
+        site.operation = GENERIC;
+        return GENERIC.execute(site, right);
+    }
+
+    private static final class NumberNegate extends UnaryOperation
+    {
+        @Override
+        Object execute(Expr.Unary site, Object right)
+        {
+            if (right instanceof Double) return -(double)right;
+            return deoptimize(site, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter, Expr.Unary site)
+        {
+            try
+            {
+                return executeDouble(interpreter, site);
+            }
+            catch (UnexpectedResultException unexpected)
+            {
+                return unexpected.result;
+            }
+        }
+
+        @Override
+        double executeDouble(Interpreter interpreter, Expr.Unary site) throws UnexpectedResultException
+        {
+            try
+            {
+                return -interpreter.evaluateDouble(site.right);
+            }
+            catch (UnexpectedResultException unexpected)
+            {
+                return BinaryOperation.expectDouble(deoptimize(site, unexpected.result));
+            }
+        }
+    }
+
+    private static final class BooleanNot extends UnaryOperation
+    {
+        @Override
+        Object execute(Expr.Unary site, Object right)
+        {
+            if (right instanceof Boolean) return !(boolean)right;
+            return deoptimize(site, right);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by the primitive evaluation paths (Interpreter.evaluateDouble) when
+// an expression produced something other than the expected type, carrying
+// the value that was actually computed. Being control flow, it is built
+// without a stack trace.
+class UnexpectedResultException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	final Object result;
+
+	UnexpectedResultException(Object result)
+	{
+		super(null, null, false, false);
+		this.result = result;
+	}
+}
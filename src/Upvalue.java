@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+// Where a closure finds one of its upvalues when it is created: the Cell in
+// slot index of the enclosing frame, or upvalue index of the enclosing
+// closure.
+final class Upvalue
+{
+    final boolean isLocal;
+    int index;
+
+    Upvalue(boolean isLocal, int index)
+    {
+        this.isLocal = isLocal;
+        this.index = index;
+    }
+}
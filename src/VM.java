@@ -0,0 +1,783 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.Interpreter.*;
+
+/*
+ * Stack based virtual machine running the chunks produced by the
+ * BytecodeCompiler. Values live on one contiguous Object[] stack and calls
+ * push a CallFrame instead of recursing in Java, so a Lox call allocates
+ * nothing but its closure's upvalues.
+ */
+class VM
+{
+    static class ObjFunction
+    {
+        final String name;
+        int arity = 0;
+        int upvalueCount = 0;
+        boolean isInitializer = false;
+        final Chunk chunk = new Chunk();
+
+        ObjFunction(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "<fn " + name + ">";
+        }
+    }
+
+    static class ObjUpvalue
+    {
+        // Stack slot while open, -1 once the value has been closed over.
+        int slot;
+        Object closed;
+        ObjUpvalue next;
+
+        ObjUpvalue(int slot)
+        {
+            this.slot = slot;
+        }
+    }
+
+    static class ObjClosure
+    {
+        final ObjFunction function;
+        final ObjUpvalue[] upvalues;
+
+        ObjClosure(ObjFunction function)
+        {
+            this.function = function;
+            this.upvalues = new ObjUpvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString()
+        {
+            return function.toString();
+        }
+    }
+
+    static class ObjInstance
+    {
+        ObjClass klass;
+        final Map<String, Object> fields = new HashMap<>();
+
+        ObjInstance(ObjClass klass)
+        {
+            this.klass = klass;
+        }
+
+        @Override
+        public String toString()
+        {
+            return klass.name + " instance";
+        }
+    }
+
+    // Like LoxClass, a class is also an instance holding its static members.
+    static class ObjClass extends ObjInstance
+    {
+        final String name;
+        final Map<String, ObjClosure> methods = new HashMap<>();
+        ObjClosure initializer = null;
+
+        ObjClass(String name)
+        {
+            super(null);
+            this.klass = this;
+            this.name = name;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    static class ObjBoundMethod
+    {
+        final Object receiver;
+        final ObjClosure method;
+
+        ObjBoundMethod(Object receiver, ObjClosure method)
+        {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString()
+        {
+            return method.toString();
+        }
+    }
+
+    private static class CallFrame
+    {
+        ObjClosure closure;
+        int ip;
+        int base;
+    }
+
+    private static final int FRAMES_MAX = 100000;
+
+    final Environment globals = new Environment();
+
+    private Object[] stack = new Object[1024];
+    private int top = 0;
+
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    private ObjUpvalue openUpvalues = null;
+
+    VM()
+    {
+        defineNatives(globals);
+    }
+
+    void interpret(ObjFunction script)
+    {
+        ObjClosure closure = new ObjClosure(script);
+        push(closure);
+
+        try
+        {
+            callClosure(closure, 0, 0);
+            run();
+        }
+        catch (RuntimeError error)
+        {
+            Lox.runtimeError(error);
+        }
+        finally
+        {
+            Arrays.fill(stack, 0, top, null);
+            top = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run()
+    {
+        CallFrame frame = frames[frameCount - 1];
+        Chunk chunk = frame.closure.function.chunk;
+        byte[] code = chunk.code;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        while (true)
+        {
+            byte instruction = code[ip++];
+
+            switch (instruction)
+            {
+                case OpCode.CONSTANT:
+                {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    push(chunk.constants.get(index));
+                    break;
+                }
+                case OpCode.NIL: push(null); break;
+                case OpCode.TRUE: push(true); break;
+                case OpCode.FALSE: push(false); break;
+                case OpCode.POP: stack[--top] = null; break;
+
+                case OpCode.GET_LOCAL:
+                    push(stack[base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff))]);
+                    ip += 2;
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff))] = stack[top - 1];
+                    ip += 2;
+                    break;
+                case OpCode.GET_GLOBAL:
+                {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    push(Environment.get(global(chunk, index), (Token)chunk.constants.get(index)));
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL:
+                {
+                    Token name = (Token)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    globals.define(name.lexeme, pop());
+                    break;
+                }
+                case OpCode.SET_GLOBAL:
+                {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Environment.assign(global(chunk, index), (Token)chunk.constants.get(index), stack[top - 1]);
+                    break;
+                }
+                case OpCode.GET_UPVALUE:
+                {
+                    ObjUpvalue upvalue = frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    push(upvalue.slot == -1 ? upvalue.closed : stack[upvalue.slot]);
+                    break;
+                }
+                case OpCode.SET_UPVALUE:
+                {
+                    ObjUpvalue upvalue = frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (upvalue.slot == -1) upvalue.closed = stack[top - 1];
+                    else stack[upvalue.slot] = stack[top - 1];
+                    break;
+                }
+                case OpCode.GET_PROPERTY:
+                {
+                    String name = (String)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    Object object = stack[top - 1];
+
+                    if (!(object instanceof ObjInstance))
+                    {
+                        throw new RuntimeError(chunk.lines[ip - 1], "Only instances have properties.");
+                    }
+
+                    ObjInstance instance = (ObjInstance)object;
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name))
+                    {
+                        stack[top - 1] = value;
+                        break;
+                    }
+
+                    stack[top - 1] = new ObjBoundMethod(instance, findMethod(instance, name, chunk.lines[ip - 1]));
+                    break;
+                }
+                case OpCode.SET_PROPERTY:
+                {
+                    String name = (String)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    Object object = stack[top - 2];
+
+                    if (!(object instanceof ObjInstance))
+                    {
+                        throw new RuntimeError(chunk.lines[ip - 1], "Only instance have fields.");
+                    }
+
+                    Object value = pop();
+                    ((ObjInstance)object).fields.put(name, value);
+                    stack[top - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER:
+                {
+                    String name = (String)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    ObjClass superclass = (ObjClass)pop();
+                    ObjClosure method = superclass.methods.get(name);
+
+                    if (method == null)
+                    {
+                        throw new RuntimeError(chunk.lines[ip - 1], "Undefined property " + name + ".");
+                    }
+
+                    stack[top - 1] = new ObjBoundMethod(stack[top - 1], method);
+                    break;
+                }
+
+                case OpCode.EQUAL:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    checkNumbers(a, b, chunk.lines[ip - 1]);
+                    stack[top - 1] = isEqual(a, b);
+                    break;
+                }
+                case OpCode.GREATER:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    checkNumbers(a, b, chunk.lines[ip - 1]);
+                    stack[top - 1] = (double)a > (double)b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    checkNumbers(a, b, chunk.lines[ip - 1]);
+                    stack[top - 1] = (double)a >= (double)b;
+                    break;
+                }
+                case OpCode.LESS:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    checkNumbers(a, b, chunk.lines[ip - 1]);
+                    stack[top - 1] = (double)a < (double)b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    checkNumbers(a, b, chunk.lines[ip - 1]);
+                    stack[top - 1] = (double)a <= (double)b;
+                    break;
+                }
+                case OpCode.ADD:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    if (a instanceof Double && b instanceof Double)
+                    {
+                        stack[top - 1] = (double)a + (double)b;
+                    }
+                    else if (a instanceof String && b instanceof String)
+                    {
+                        stack[top - 1] = (String)a + (String)b;
+                    }
+                    else
+                    {
+                        throw new RuntimeError(chunk.lines[ip - 1], "Operands must be two numbers or two strings");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    checkNumbers(a, b, chunk.lines[ip - 1]);
+                    stack[top - 1] = (double)a - (double)b;
+                    break;
+                }
+                case OpCode.MULTIPLY:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    checkNumbers(a, b, chunk.lines[ip - 1]);
+                    stack[top - 1] = (double)a * (double)b;
+                    break;
+                }
+                case OpCode.DIVIDE:
+                {
+                    Object b = pop();
+                    Object a = stack[top - 1];
+                    checkNumbers(a, b, chunk.lines[ip - 1]);
+                    stack[top - 1] = (double)a / (double)b;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[top - 1] = !isTruthy(stack[top - 1]);
+                    break;
+                case OpCode.NEGATE:
+                    if (!(stack[top - 1] instanceof Double))
+                    {
+                        throw new RuntimeError(chunk.lines[ip - 1], "Operand must be a number.");
+                    }
+                    stack[top - 1] = -(double)stack[top - 1];
+                    break;
+
+                case OpCode.PRINT:
+                    System.out.println(stringify(pop()));
+                    break;
+                case OpCode.JUMP:
+                {
+                    ip += 4 + readInt(code, ip);
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE:
+                {
+                    int offset = readInt(code, ip);
+                    ip += 4;
+                    if (!isTruthy(stack[top - 1])) ip += offset;
+                    break;
+                }
+                case OpCode.LOOP:
+                {
+                    ip += 4 - readInt(code, ip);
+                    break;
+                }
+                case OpCode.CALL:
+                {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    if (callValue(stack[top - 1 - argCount], argCount, chunk.lines[ip - 1]))
+                    {
+                        frame = frames[frameCount - 1];
+                        chunk = frame.closure.function.chunk;
+                        code = chunk.code;
+                        ip = frame.ip;
+                        base = frame.base;
+                    }
+                    break;
+                }
+                case OpCode.INVOKE:
+                {
+                    String name = (String)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    if (invoke(name, argCount, chunk.lines[ip - 1]))
+                    {
+                        frame = frames[frameCount - 1];
+                        chunk = frame.closure.function.chunk;
+                        code = chunk.code;
+                        ip = frame.ip;
+                        base = frame.base;
+                    }
+                    break;
+                }
+                case OpCode.TAIL_CALL:
+                {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    Object callee = stack[top - 1 - argCount];
+                    if (callee instanceof ObjBoundMethod)
+                    {
+                        ObjBoundMethod bound = (ObjBoundMethod)callee;
+                        stack[top - 1 - argCount] = bound.receiver;
+                        callee = bound.method;
+                    }
+
+                    boolean reload = callee instanceof ObjClosure
+                            ? tailCallClosure(frame, (ObjClosure)callee, argCount, chunk.lines[ip - 1])
+                            : callValue(callee, argCount, chunk.lines[ip - 1]);
+                    if (reload)
+                    {
+                        frame = frames[frameCount - 1];
+                        chunk = frame.closure.function.chunk;
+                        code = chunk.code;
+                        ip = frame.ip;
+                        base = frame.base;
+                    }
+                    break;
+                }
+                case OpCode.TAIL_INVOKE:
+                {
+                    String name = (String)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    int line = chunk.lines[ip - 1];
+
+                    // Fields and errors go the way of INVOKE.
+                    Object receiver = stack[top - 1 - argCount];
+                    boolean reload = receiver instanceof ObjInstance && !((ObjInstance)receiver).fields.containsKey(name)
+                            ? tailCallClosure(frame, findMethod((ObjInstance)receiver, name, line), argCount, line)
+                            : invoke(name, argCount, line);
+                    if (reload)
+                    {
+                        frame = frames[frameCount - 1];
+                        chunk = frame.closure.function.chunk;
+                        code = chunk.code;
+                        ip = frame.ip;
+                        base = frame.base;
+                    }
+                    break;
+                }
+                case OpCode.CLOSURE:
+                {
+                    ObjFunction function = (ObjFunction)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    ObjClosure closure = new ObjClosure(function);
+                    for (int i = 0; i < closure.upvalues.length; ++i)
+                    {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        closure.upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                    }
+                    push(closure);
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(top - 1);
+                    stack[--top] = null;
+                    break;
+                case OpCode.RETURN:
+                {
+                    Object result = pop();
+                    closeUpvalues(base);
+
+                    --frameCount;
+                    Arrays.fill(stack, base, top, null);
+                    top = base;
+
+                    if (frameCount == 0) return;
+
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    chunk = frame.closure.function.chunk;
+                    code = chunk.code;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+
+                case OpCode.CLASS:
+                {
+                    Token name = (Token)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    push(new ObjClass(name.lexeme));
+                    break;
+                }
+                case OpCode.INHERIT:
+                {
+                    Object superclass = stack[top - 1];
+                    if (!(superclass instanceof ObjClass))
+                    {
+                        throw new RuntimeError(chunk.lines[ip - 1], "Superclass must be a class.");
+                    }
+
+                    ObjClass subclass = (ObjClass)stack[top - 2];
+                    subclass.methods.putAll(((ObjClass)superclass).methods);
+                    subclass.initializer = ((ObjClass)superclass).initializer;
+                    break;
+                }
+                case OpCode.METHOD:
+                {
+                    String name = (String)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    ObjClosure method = (ObjClosure)pop();
+                    ObjClass klass = (ObjClass)stack[top - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    break;
+                }
+                case OpCode.STATIC_FIELD:
+                {
+                    String name = (String)chunk.constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    Object value = pop();
+                    ((ObjClass)stack[top - 1]).fields.put(name, value);
+                    break;
+                }
+
+                default:
+                    throw new RuntimeError(chunk.lines[ip - 1], "Unknown opcode " + instruction + ".");
+            }
+        }
+    }
+
+    // Returns true when a new frame was pushed and the caller must reload it.
+    private boolean callValue(Object callee, int argCount, int line)
+    {
+        if (callee instanceof ObjClosure)
+        {
+            return callClosure((ObjClosure)callee, argCount, line);
+        }
+
+        if (callee instanceof ObjBoundMethod)
+        {
+            ObjBoundMethod bound = (ObjBoundMethod)callee;
+            stack[top - 1 - argCount] = bound.receiver;
+            return callClosure(bound.method, argCount, line);
+        }
+
+        if (callee instanceof ObjClass)
+        {
+            ObjClass klass = (ObjClass)callee;
+            stack[top - 1 - argCount] = new ObjInstance(klass);
+
+            if (klass.initializer != null)
+            {
+                return callClosure(klass.initializer, argCount, line);
+            }
+
+            checkArity(0, argCount, line);
+            return false;
+        }
+
+        if (callee instanceof LoxCallable)
+        {
+            LoxCallable function = (LoxCallable)callee;
+            checkArity(function.arity(), argCount, line);
+
+            // Natives never reach back into the tree-walking Interpreter.
+            Object result;
+            int first = top - argCount;
+            switch (argCount)
+            {
+                case 0:  result = function.call(null); break;
+                case 1:  result = function.call(null, stack[first]); break;
+                case 2:  result = function.call(null, stack[first], stack[first + 1]); break;
+                case 3:  result = function.call(null, stack[first], stack[first + 1], stack[first + 2]); break;
+                case 4:  result = function.call(null, stack[first], stack[first + 1], stack[first + 2], stack[first + 3]); break;
+                default: result = function.call(null, Arrays.copyOfRange(stack, first, top)); break;
+            }
+            Arrays.fill(stack, top - argCount - 1, top, null);
+            top -= argCount + 1;
+            push(result);
+            return false;
+        }
+
+        throw new RuntimeError(line, "Object not callable: can only call functions and classes");
+    }
+
+    private boolean invoke(String name, int argCount, int line)
+    {
+        Object receiver = stack[top - 1 - argCount];
+
+        if (!(receiver instanceof ObjInstance))
+        {
+            throw new RuntimeError(line, "Only instances have properties.");
+        }
+
+        ObjInstance instance = (ObjInstance)receiver;
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name))
+        {
+            stack[top - 1 - argCount] = field;
+            return callValue(field, argCount, line);
+        }
+
+        return callClosure(findMethod(instance, name, line), argCount, line);
+    }
+
+    private ObjClosure findMethod(ObjInstance instance, String name, int line)
+    {
+        ObjClosure method = instance.klass.methods.get(name);
+
+        if (method == null)
+        {
+            throw new RuntimeError(line, "Undefined properties " + name + " in instance of type " + instance.klass.name + ".");
+        }
+
+        return method;
+    }
+
+    private boolean callClosure(ObjClosure closure, int argCount, int line)
+    {
+        checkArity(closure.function.arity, argCount, line);
+
+        if (frameCount == FRAMES_MAX)
+        {
+            throw new RuntimeError(line, "Stack overflow.");
+        }
+
+        if (frameCount == frames.length)
+        {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null)
+        {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        ++frameCount;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = top - argCount - 1;
+        return true;
+    }
+
+    // Runs closure in place of the current frame: the callee and its
+    // arguments move down to the frame's base, over the caller's slots.
+    private boolean tailCallClosure(CallFrame frame, ObjClosure closure, int argCount, int line)
+    {
+        checkArity(closure.function.arity, argCount, line);
+        closeUpvalues(frame.base);
+
+        int count = argCount + 1;
+        System.arraycopy(stack, top - count, stack, frame.base, count);
+        Arrays.fill(stack, frame.base + count, top, null);
+        top = frame.base + count;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        return true;
+    }
+
+    private void checkArity(int arity, int argCount, int line)
+    {
+        if (argCount != arity)
+        {
+            throw new RuntimeError(line, "Expected " + arity + " number of arguments but got " + argCount + ".");
+        }
+    }
+
+    private void checkNumbers(Object a, Object b, int line)
+    {
+        if (a instanceof Double && b instanceof Double) return;
+        throw new RuntimeError(line, "Operands must be numbers.");
+    }
+
+    private Cell global(Chunk chunk, int index)
+    {
+        if (chunk.globals == null) chunk.globals = new Cell[chunk.constants.size()];
+
+        Cell cell = chunk.globals[index];
+        if (cell == null)
+        {
+            cell = globals.global(((Token)chunk.constants.get(index)).lexeme);
+            chunk.globals[index] = cell;
+        }
+        return cell;
+    }
+
+    private ObjUpvalue captureUpvalue(int slot)
+    {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+
+        while (upvalue != null && upvalue.slot > slot)
+        {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(slot);
+        created.next = upvalue;
+
+        if (previous == null) openUpvalues = created;
+        else previous.next = created;
+
+        return created;
+    }
+
+    private void closeUpvalues(int last)
+    {
+        while (openUpvalues != null && openUpvalues.slot >= last)
+        {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    // The u32 operand of a jump.
+    private static int readInt(byte[] code, int ip)
+    {
+        return (code[ip] << 24) | ((code[ip + 1] & 0xff) << 16) | ((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff);
+    }
+
+    private void push(Object value)
+    {
+        if (top == stack.length)
+        {
+            stack = Arrays.copyOf(stack, top * 2);
+        }
+        stack[top++] = value;
+    }
+
+    private Object pop()
+    {
+        Object value = stack[--top];
+        stack[top] = null;
+        return value;
+    }
+}